@@ -1,3 +1,6 @@
+import java.util.ArrayList;
+import java.util.List;
+
 /*
 -----CHAPTER 6 COMMAND PATTERNS-----
 *Command patterns aim to create a template for passing around commands. 
@@ -158,6 +161,255 @@ class RemoteControl {
 
 }
 
+// A command object to turn off the light. Handy for "lights off at 23:00".
+class LightOffCommand implements Command {
+    SmartLamp smartLamp;
+
+    public LightOffCommand(SmartLamp smartLamp) {
+        this.smartLamp = smartLamp;
+    }
+
+    @Override
+    public void execute() {
+        smartLamp.off();
+    }
+}
+
+/*
+ * Pressing a button runs a command right now. But a smart home also wants
+ * commands to run LATER: lights off at 23:00, auto-lock after 5 minutes...
+ * With millions of those pending, a priority queue (what
+ * ScheduledThreadPoolExecutor uses) costs O(log n) per insert and a fat task
+ * object per entry. So we schedule our Command objects on a hierarchical
+ * timing wheel instead, where scheduling and cancelling are both O(1).
+ *
+ * The wheel asks a clock what time it is, so tests can drive it with a
+ * VirtualClock instead of waiting for real time to pass.
+ */
+interface SchedulerClock {
+    long currentTimeMillis();
+
+    SchedulerClock SYSTEM = System::currentTimeMillis;
+}
+
+// A clock that only moves when we tell it to.
+class VirtualClock implements SchedulerClock {
+    private long now;
+
+    public VirtualClock(long start) {
+        this.now = start;
+    }
+
+    public synchronized void advance(long millis) {
+        now += millis;
+    }
+
+    @Override
+    public synchronized long currentTimeMillis() {
+        return now;
+    }
+}
+
+/*
+ * Handle returned by schedule(). It is also the node of the doubly linked
+ * bucket list it sits in, which is what makes cancel() O(1).
+ */
+class ScheduledCommand {
+    final Command command;
+    final long deadlineTick;
+    ScheduledCommand prev;
+    ScheduledCommand next;
+    ScheduledCommand[] bucketHeads;
+    int bucket = -1;
+    boolean cancelled;
+
+    ScheduledCommand(Command command, long deadlineTick) {
+        this.command = command;
+        this.deadlineTick = deadlineTick;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isPending() {
+        return bucket >= 0;
+    }
+}
+
+/*
+ * Every level is a wheel of 2^bits buckets. Level 0 buckets are one tick
+ * wide, level 1 buckets are 2^bits ticks wide and so on. A command goes to
+ * the lowest level whose range covers its delay. Whenever a level's lower
+ * digits roll over to zero, the current bucket of that level is "cascaded":
+ * its commands are re-inserted and fall down to a finer level. Level 0
+ * buckets that come due are fired as one batch through execute().
+ *
+ * The wheel itself is guarded by its own monitor, but fired commands run
+ * outside of it, so a command is free to schedule another one.
+ */
+class CommandScheduler {
+    private final SchedulerClock clock;
+    private final long tickMillis;
+    private final long startMillis;
+    private final int bits;
+    private final int mask;
+    private final ScheduledCommand[][] wheels;
+    private final List<Command> batch = new ArrayList<>();
+    private long currentTick;
+    private int pending;
+
+    public CommandScheduler(SchedulerClock clock, long tickMillis, int bits, int levels) {
+        // More than 30 bits would overflow the bucket count of a single wheel.
+        if (tickMillis <= 0 || bits <= 0 || bits > 30 || levels <= 0 || (long) bits * levels >= 63)
+            throw new IllegalArgumentException("Bad wheel geometry");
+        this.clock = clock;
+        this.tickMillis = tickMillis;
+        this.startMillis = clock.currentTimeMillis();
+        this.bits = bits;
+        this.mask = (1 << bits) - 1;
+        this.wheels = new ScheduledCommand[levels][1 << bits];
+    }
+
+    // 1 second ticks, 64 buckets per level and 4 levels: roughly 194 days of range.
+    public CommandScheduler(SchedulerClock clock) {
+        this(clock, 1000, 6, 4);
+    }
+
+    public synchronized ScheduledCommand schedule(Command command, long delayMillis) {
+        long deadlineMillis = clock.currentTimeMillis() + Math.max(0, delayMillis) - startMillis;
+        long deadlineTick = (deadlineMillis + tickMillis - 1) / tickMillis;
+        // The current tick has already been fired, so the earliest we can do is the next one.
+        ScheduledCommand scheduled = new ScheduledCommand(command, Math.max(deadlineTick, currentTick + 1));
+        insert(scheduled);
+        pending++;
+        return scheduled;
+    }
+
+    public synchronized boolean cancel(ScheduledCommand scheduled) {
+        if (!scheduled.isPending())
+            return false;
+        unlink(scheduled);
+        scheduled.cancelled = true;
+        pending--;
+        return true;
+    }
+
+    public synchronized int pendingCount() {
+        return pending;
+    }
+
+    /*
+     * Moves the wheel up to the clock's current time and executes everything
+     * that came due, one tick's batch at a time. Returns how many commands ran.
+     * If a command throws, the rest of its batch still runs and then the first
+     * exception is rethrown; later ticks wait for the next advance().
+     */
+    public int advance() {
+        int fired = 0;
+        while (true) {
+            synchronized (this) {
+                long targetTick = (clock.currentTimeMillis() - startMillis) / tickMillis;
+                if (currentTick >= targetTick)
+                    return fired;
+                currentTick++;
+                collectDue();
+            }
+            fired += fireBatch();
+        }
+    }
+
+    private void insert(ScheduledCommand scheduled) {
+        long delta = scheduled.deadlineTick - currentTick;
+        int level = 0;
+        while (level < wheels.length - 1 && delta >= 1L << (bits * (level + 1)))
+            level++;
+        long slotTick = scheduled.deadlineTick;
+        if (delta >= 1L << (bits * (level + 1))) {
+            // Further away than the whole wheel can see: park it in the top
+            // level bucket that comes around last, it'll be re-inserted from there.
+            slotTick = currentTick + (1L << (bits * (level + 1))) - 1;
+        }
+        int slot = (int) ((slotTick >>> (bits * level)) & mask);
+        ScheduledCommand[] heads = wheels[level];
+        scheduled.bucketHeads = heads;
+        scheduled.bucket = slot;
+        scheduled.prev = null;
+        scheduled.next = heads[slot];
+        if (heads[slot] != null)
+            heads[slot].prev = scheduled;
+        heads[slot] = scheduled;
+    }
+
+    private void unlink(ScheduledCommand scheduled) {
+        if (scheduled.prev != null)
+            scheduled.prev.next = scheduled.next;
+        else
+            scheduled.bucketHeads[scheduled.bucket] = scheduled.next;
+        if (scheduled.next != null)
+            scheduled.next.prev = scheduled.prev;
+        scheduled.prev = null;
+        scheduled.next = null;
+        scheduled.bucketHeads = null;
+        scheduled.bucket = -1;
+    }
+
+    private ScheduledCommand detach(ScheduledCommand[] heads, int slot) {
+        ScheduledCommand head = heads[slot];
+        heads[slot] = null;
+        return head;
+    }
+
+    private void collectDue() {
+        // Cascade from the top down, so commands can fall through several levels in one tick.
+        for (int level = wheels.length - 1; level > 0; level--) {
+            if ((currentTick & ((1L << (bits * level)) - 1)) != 0)
+                continue;
+            int slot = (int) ((currentTick >>> (bits * level)) & mask);
+            ScheduledCommand scheduled = detach(wheels[level], slot);
+            while (scheduled != null) {
+                ScheduledCommand next = scheduled.next;
+                insert(scheduled);
+                scheduled = next;
+            }
+        }
+
+        ScheduledCommand scheduled = detach(wheels[0], (int) (currentTick & mask));
+        while (scheduled != null) {
+            ScheduledCommand next = scheduled.next;
+            scheduled.next = null;
+            scheduled.prev = null;
+            scheduled.bucketHeads = null;
+            scheduled.bucket = -1;
+            pending--;
+            batch.add(scheduled.command);
+            scheduled = next;
+        }
+    }
+
+    private int fireBatch() {
+        Command[] due;
+        synchronized (this) {
+            due = batch.toArray(new Command[0]);
+            batch.clear();
+        }
+        RuntimeException failure = null;
+        for (Command command : due) {
+            try {
+                command.execute();
+            } catch (RuntimeException e) {
+                if (failure == null)
+                    failure = e;
+                else
+                    failure.addSuppressed(e);
+            }
+        }
+        if (failure != null)
+            throw failure;
+        return due.length;
+    }
+}
+
 /* Finally time to create a RemoteControl and demonstrate how everything works*/
 public class CommandPatterns{
     public static void main(String[] args) {
@@ -181,6 +433,24 @@ public class CommandPatterns{
         RemoteControl remoteControl3 = new RemoteControl(
             smartLock::lock, smartLamp::on);
 
+        //Commands can also be scheduled for later. A VirtualClock lets us
+        //fast forward time instead of actually waiting for 23:00.
+        VirtualClock clock = new VirtualClock(0);
+        CommandScheduler scheduler = new CommandScheduler(clock);
+        smartLamp.on();
+        scheduler.schedule(new LightOffCommand(smartLamp), 3 * 60 * 60 * 1000);
+        scheduler.schedule(new LockCommand(smartLock), 5 * 60 * 1000);
+        ScheduledCommand unlock = scheduler.schedule(new UnlockCommand(smartLock), 10 * 60 * 1000);
+        scheduler.cancel(unlock);
+
+        clock.advance(5 * 60 * 1000);
+        scheduler.advance();
+        System.out.println("Locked after 5 minutes: " + smartLock.isLocked);
+
+        clock.advance(3 * 60 * 60 * 1000);
+        scheduler.advance();
+        System.out.println("Lamp on after 3 hours: " + smartLamp.isOn);
+        System.out.println("Still pending: " + scheduler.pendingCount());
 
     }
 }
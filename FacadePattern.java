@@ -1,4 +1,21 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /*It's simply an interface intended to perform chores for you. 
 
@@ -19,21 +36,49 @@ class Universe{
 
 
     public Universe(){
-        galaxies = new ArrayList<>();
+        galaxies = new SwapRemoveList<>(10);
     }
 
-    public void addGalaxy(Galaxy galaxy){
-        galaxies.add(galaxy);
+    //When we know how many galaxies are coming, the list never has to grow.
+    public Universe(int expectedGalaxies){
+        galaxies = new SwapRemoveList<>(expectedGalaxies);
+    }
+
+    //Returns a handle, keep it if you want to remove the galaxy quickly later.
+    public long addGalaxy(Galaxy galaxy){
+        return SwapRemoveList.of(galaxies).addForHandle(galaxy);
+    }
+
+    public void addGalaxies(List<Galaxy> newGalaxies){
+        galaxies.addAll(newGalaxies);
     }
 
     public void removeGalaxy(Galaxy galaxy){
-        galaxies.add(galaxy);
+        SwapRemoveList.of(galaxies).swapRemove(galaxy);
+    }
+
+    public void removeGalaxy(long handle){
+        SwapRemoveList.of(galaxies).removeHandle(handle);
+    }
+
+    public void removeGalaxiesIf(Predicate<? super Galaxy> doomed){
+        galaxies.removeIf(doomed);
     }
 
     public void startExpanding(){
         System.out.println("Universe is expanding...");
     }
 
+    //Simulation time. Only UniverseTickEngine moves these forward.
+    double age;
+    double radius = 1;
+    static final double EXPANSION_RATE = 0.07;
+
+    void tick(double dt){
+        age += dt;
+        radius *= 1 + EXPANSION_RATE * dt;
+    }
+
      
 }
 
@@ -44,33 +89,333 @@ class Galaxy{
     List<Planet> planets;
 
     public Galaxy(String name){
-        stars = new ArrayList<>();
-        planets = new ArrayList<>();
+        this(name, 10, 10);
+    }
+
+    public Galaxy(String name, int expectedStars, int expectedPlanets){
+        this.name = name;
+        stars = new SwapRemoveList<>(expectedStars);
+        planets = new SwapRemoveList<>(expectedPlanets);
     }
 
-    public void addStar(Star star){
-        stars.add(star);
+    public long addStar(Star star){
+        changed();
+        return SwapRemoveList.of(stars).addForHandle(star);
     }
 
+    public void removeStar(Star star){
+        changed();
+        SwapRemoveList.of(stars).swapRemove(star);
+    }
+
+    public void removeStar(long handle){
+        changed();
+        SwapRemoveList.of(stars).removeHandle(handle);
+    }
+
+    public void removeStarsIf(Predicate<? super Star> doomed){
+        changed();
+        stars.removeIf(doomed);
+    }
+
+    //Kept for old callers, it always removed a star despite its name.
+    @Deprecated
     public void removeGalaxy(Star star){
-        stars.add(star);
+        removeStar(star);
     }
     
-    public void addPlanet(Planet planet){
-        planets.add(planet);
+    public long addPlanet(Planet planet){
+        changed();
+        return SwapRemoveList.of(planets).addForHandle(planet);
     }
 
     public void removePlanet(Planet planet){
-        planets.add(planet);
+        changed();
+        SwapRemoveList.of(planets).swapRemove(planet);
+    }
+
+    public void removePlanet(long handle){
+        changed();
+        SwapRemoveList.of(planets).removeHandle(handle);
+    }
+
+    public void removePlanetsIf(Predicate<? super Planet> doomed){
+        changed();
+        planets.removeIf(doomed);
     }
 
     public void rotate(){
         System.out.println(name + " Galaxy is rotating...");
     }
 
+    /*Goes up whenever the galaxy changes through its methods, so a snapshot
+    knows which galaxies it has to write again. Changing the lists directly
+    bypasses it. */
+    int version;
+
+    void changed(){
+        version++;
+    }
+
+    //Simulation state of the galaxy itself.
+    double rotationAngle;
+    static final double ROTATION_RATE = 0.001;
+
+    //Stars first, then planets. The tick engine splits big galaxies by these numbers.
+    public int bodyCount(){
+        return stars.size() + planets.size();
+    }
+
+    /*A tick moves the rotation angle and every body's age and spin, and a
+    snapshot saves all of those, so a ticked galaxy has to be written again.
+    A tick of zero length changes nothing and doesn't count. */
+    void tickGalaxy(double dt){
+        if(dt == 0)
+            return;
+        changed();
+        rotationAngle += ROTATION_RATE * dt;
+    }
+
+    //Advances bodies from (inclusive) to to (exclusive), counting stars first.
+    void tickBodies(int from, int to, double dt){
+        int starCount = stars.size();
+        for(int i = from; i < Math.min(to, starCount); i++)
+            stars.get(i).tick(dt);
+        for(int i = Math.max(from, starCount); i < to; i++)
+            planets.get(i - starCount).tick(dt);
+    }
+
 
 }
 
+/*Removing from the middle of an ArrayList shifts everything after it, O(n).
+Our galaxies don't care about the order of their stars, so we can do
+better: move the LAST element into the hole and shrink by one. That's a
+"swap remove", O(1), and the elements stay packed together so iterating
+stays fast.
+
+The catch is that elements move around, so an index isn't a stable way to
+point at one. Every element gets a handle instead, and a HandleTable keeps
+track of where each handle's element currently is.
+
+It's still a proper List: the List methods (remove(int), add(int, ...),
+subList, ...) keep the order like any other list does. Only the methods of
+its own reorder: removeHandle() and swapRemove() move the last element into
+the hole. Keep the handle from addForHandle() and removeHandle() is O(1)
+all the way. removeIf() keeps the order and compacts the list in one pass. */
+class SwapRemoveList<T> extends AbstractList<T> implements RandomAccess{
+    private Object[] items;
+    private long[] handles;
+    private int size;
+    private final HandleTable handleTable = new HandleTable();
+
+    SwapRemoveList(int capacity){
+        capacity = Math.max(capacity, 4);
+        items = new Object[capacity];
+        handles = new long[capacity];
+    }
+
+    //The handle methods need the list they were made for.
+    static <T> SwapRemoveList<T> of(List<T> list){
+        if(!(list instanceof SwapRemoveList))
+            throw new IllegalStateException("Handles only work on a SwapRemoveList, not a " + list.getClass().getSimpleName());
+        return (SwapRemoveList<T>) list;
+    }
+
+    public long addForHandle(T item){
+        add(size, item);
+        return handles[size - 1];
+    }
+
+    @Override
+    public void add(int index, T item){
+        Objects.checkIndex(index, size + 1);
+        if(size == items.length){
+            int capacity = items.length + (items.length >> 1);
+            items = Arrays.copyOf(items, capacity);
+            handles = Arrays.copyOf(handles, capacity);
+        }
+        System.arraycopy(items, index, items, index + 1, size - index);
+        System.arraycopy(handles, index, handles, index + 1, size - index);
+        for(int i = index + 1; i <= size; i++)
+            handleTable.move(handles[i], i);
+        items[index] = item;
+        handles[index] = handleTable.allocate(index);
+        size++;
+        modCount++;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public T get(int index){
+        Objects.checkIndex(index, size);
+        return (T) items[index];
+    }
+
+    //The element keeps its handle, only what the handle points at changes.
+    @Override
+    public T set(int index, T item){
+        T old = get(index);
+        items[index] = item;
+        return old;
+    }
+
+    @Override
+    public int size(){
+        return size;
+    }
+
+    public long handleAt(int index){
+        Objects.checkIndex(index, size);
+        return handles[index];
+    }
+
+    //Removes the element at index and shifts the ones after it, like any list.
+    @Override
+    public T remove(int index){
+        T removed = get(index);
+        removeRange(index, index + 1);
+        return removed;
+    }
+
+    @Override
+    protected void removeRange(int from, int to){
+        if(from >= to)
+            return;
+        for(int i = from; i < to; i++)
+            handleTable.free(handles[i]);
+        System.arraycopy(items, to, items, from, size - to);
+        System.arraycopy(handles, to, handles, from, size - to);
+        int newSize = size - (to - from);
+        for(int i = from; i < newSize; i++)
+            handleTable.move(handles[i], i);
+        Arrays.fill(items, newSize, size, null);
+        size = newSize;
+        modCount++;
+    }
+
+    //O(1): whatever was last now sits at index.
+    public T swapRemove(int index){
+        T removed = get(index);
+        handleTable.free(handles[index]);
+        int last = size - 1;
+        if(index != last){
+            items[index] = items[last];
+            handles[index] = handles[last];
+            handleTable.move(handles[index], index);
+        }
+        items[last] = null;
+        size = last;
+        modCount++;
+        return removed;
+    }
+
+    //Searches for the element, but doesn't shift anything to remove it.
+    public boolean swapRemove(Object item){
+        int index = indexOf(item);
+        if(index < 0)
+            return false;
+        swapRemove(index);
+        return true;
+    }
+
+    //Returns null if the handle's element was already removed.
+    public T removeHandle(long handle){
+        int index = handleTable.indexOf(handle);
+        return index < 0 ? null : swapRemove(index);
+    }
+
+    public boolean containsHandle(long handle){
+        return handleTable.indexOf(handle) >= 0;
+    }
+
+    /*Like ArrayList.removeIf, the predicate sees every element before
+    anything moves. If it throws halfway, the list is left as it was. */
+    @SuppressWarnings("unchecked")
+    @Override
+    public boolean removeIf(Predicate<? super T> doomed){
+        BitSet removed = new BitSet(size);
+        for(int i = 0; i < size; i++)
+            if(doomed.test((T) items[i]))
+                removed.set(i);
+        if(removed.isEmpty())
+            return false;
+        int kept = 0;
+        for(int i = 0; i < size; i++){
+            if(removed.get(i)){
+                handleTable.free(handles[i]);
+            } else {
+                if(kept != i){
+                    items[kept] = items[i];
+                    handles[kept] = handles[i];
+                    handleTable.move(handles[kept], kept);
+                }
+                kept++;
+            }
+        }
+        Arrays.fill(items, kept, size, null);
+        size = kept;
+        modCount++;
+        return true;
+    }
+}
+
+/*Hands out handles and remembers where their elements are. A handle is a
+slot number plus the slot's generation. Removed slots go on a free list
+and get reused, with their generation bumped, so an old handle to a
+reused slot is recognized as stale instead of hitting somebody else. */
+class HandleTable{
+    private int[] indexes = new int[16];
+    private int[] generations = new int[16];
+    private int slots;
+    //Free slots are chained through indexes: a free slot holds -(next free slot + 2).
+    private int freeHead = -1;
+
+    //Makes sure count more handles fit without growing on the way.
+    void reserve(int count){
+        int needed = slots + count;
+        if(needed > indexes.length){
+            indexes = Arrays.copyOf(indexes, needed);
+            generations = Arrays.copyOf(generations, needed);
+        }
+    }
+
+    long allocate(int index){
+        int slot;
+        if(freeHead >= 0){
+            slot = freeHead;
+            freeHead = -indexes[slot] - 2;
+        } else {
+            if(slots == indexes.length){
+                indexes = Arrays.copyOf(indexes, slots * 2);
+                generations = Arrays.copyOf(generations, slots * 2);
+            }
+            slot = slots++;
+        }
+        indexes[slot] = index;
+        return ((long) generations[slot] << 32) | slot;
+    }
+
+    //Where the handle's element is now, or -1 if it's gone.
+    int indexOf(long handle){
+        int slot = (int) handle;
+        if(slot < 0 || slot >= slots || generations[slot] != (int) (handle >>> 32))
+            return -1;
+        return indexes[slot] >= 0 ? indexes[slot] : -1;
+    }
+
+    void move(long handle, int index){
+        indexes[(int) handle] = index;
+    }
+
+    void free(long handle){
+        int slot = (int) handle;
+        generations[slot]++;
+        indexes[slot] = -freeHead - 2;
+        freeHead = slot;
+    }
+}
+
 class Star{
     String name;
 
@@ -82,6 +427,12 @@ class Star{
         System.out.println(name + " Star is shining...");
     }
 
+    double age;
+
+    void tick(double dt){
+        age += dt;
+    }
+
 }
 
 class Planet{
@@ -96,11 +447,1243 @@ class Planet{
         System.out.println("Planet " + name + "is Spinnin.g");
     }
 
+    double spinAngle;
+    double spinRate = 1;
+
+    void tick(double dt){
+        spinAngle = (spinAngle + spinRate * dt) % (2 * Math.PI);
+    }
+
 }
 
 
 
 
+/*Until now our universe just sat there. UniverseTickEngine moves simulation
+time forward: every tick the universe expands, every galaxy rotates, every
+star ages and every planet spins.
+
+Galaxies don't affect each other, so a tick is split into fork-join tasks.
+Tasks are split by body count, not by galaxy count, so one galaxy with a
+million stars weighs as much as a thousand galaxies with a thousand each.
+A galaxy that's still too big on its own is split into ranges of its
+bodies. Whichever worker runs out of work steals from the others, so
+uneven galaxies still keep every core busy.
+
+With a fixed step every tick advances by the same dt. Every body only
+depends on its own state, so the result doesn't depend on how the work was
+split or which worker did it. Run it twice, get the same universe twice.
+Without a fixed step, dt is the real time since the last tick. */
+class UniverseTickEngine{
+    //Below this many bodies, a task stops splitting and just does the work.
+    static final int LEAF_BODIES = 16_384;
+
+    private final Universe universe;
+    private final ForkJoinPool pool;
+    private final double fixedStep;
+    private long lastTickNanos;
+    private long ticks;
+    private long tickNanos;
+    /*Time spent per partition, that is per leaf task: a run of small galaxies
+    or a range of bodies of a big one. It shows which part of the universe
+    is expensive and how evenly the tick was split. Only the last tick is
+    kept, so there is never more than one entry per leaf, and a leaf just
+    stores a few numbers. Names are only made when somebody asks. */
+    private final Queue<PartitionTime> tickPartitions = new ConcurrentLinkedQueue<>();
+    private volatile List<PartitionTime> lastTickPartitions = List.of();
+
+    static final class PartitionTime{
+        //Galaxies [galaxyFrom, galaxyTo), or bodies [bodyFrom, bodyTo) of galaxy galaxyFrom.
+        final int galaxyFrom;
+        final int galaxyTo;
+        final int bodyFrom;
+        final int bodyTo;
+        final int bodies;
+        final long nanos;
+
+        PartitionTime(int galaxyFrom, int galaxyTo, int bodyFrom, int bodyTo, int bodies, long nanos){
+            this.galaxyFrom = galaxyFrom;
+            this.galaxyTo = galaxyTo;
+            this.bodyFrom = bodyFrom;
+            this.bodyTo = bodyTo;
+            this.bodies = bodies;
+            this.nanos = nanos;
+        }
+
+        String name(){
+            if(bodyFrom < 0)
+                return "galaxies " + galaxyFrom + "-" + (galaxyTo - 1);
+            return "galaxy " + galaxyFrom + " bodies " + bodyFrom + "-" + (bodyTo - 1);
+        }
+    }
+
+    public UniverseTickEngine(Universe universe, ForkJoinPool pool, double fixedStep){
+        this.universe = universe;
+        this.pool = pool;
+        this.fixedStep = fixedStep;
+    }
+
+    //A deterministic engine: every tick is fixedStep long.
+    public UniverseTickEngine(Universe universe, double fixedStep){
+        this(universe, ForkJoinPool.commonPool(), fixedStep);
+    }
+
+    public boolean isDeterministic(){
+        return fixedStep > 0;
+    }
+
+    public void run(int tickCount){
+        for(int i = 0; i < tickCount; i++)
+            tick();
+    }
+
+    public void tick(){
+        long start = System.nanoTime();
+        double dt;
+        if(isDeterministic())
+            dt = fixedStep;
+        else
+            dt = lastTickNanos == 0 ? 0 : (start - lastTickNanos) / 1e9;
+        lastTickNanos = start;
+
+        universe.tick(dt);
+        List<Galaxy> galaxies = universe.galaxies;
+        long[] weights = new long[galaxies.size() + 1];
+        for(int i = 0; i < galaxies.size(); i++)
+            weights[i + 1] = weights[i] + galaxies.get(i).bodyCount() + 1;
+        pool.invoke(new GalaxiesTask(galaxies, weights, 0, galaxies.size(), dt));
+        lastTickPartitions = new ArrayList<>(tickPartitions);
+        tickPartitions.clear();
+
+        ticks++;
+        tickNanos += System.nanoTime() - start;
+    }
+
+    public double ticksPerSecond(){
+        return tickNanos == 0 ? 0 : ticks * 1e9 / tickNanos;
+    }
+
+    //Nanoseconds per partition in the last tick, slowest first.
+    public Map<String, Long> partitionNanos(){
+        Map<String, Long> nanos = new LinkedHashMap<>();
+        for(PartitionTime time : slowestPartitions())
+            nanos.put(time.name(), time.nanos);
+        return nanos;
+    }
+
+    //Ticks per second, then the slowest partitions of the last tick.
+    public String report(){
+        List<PartitionTime> slowest = slowestPartitions();
+        StringBuilder report = new StringBuilder(String.format("%d ticks, %.1f ticks/s, last tick in %d partitions%n",
+            ticks, ticksPerSecond(), slowest.size()));
+        int shown = Math.min(10, slowest.size());
+        for(int i = 0; i < shown; i++){
+            PartitionTime time = slowest.get(i);
+            report.append(String.format("  %-32s %,9d bodies, %8.3f ms%n", time.name(), time.bodies, time.nanos / 1e6));
+        }
+        if(slowest.size() > shown)
+            report.append(String.format("  ... and %d faster partitions%n", slowest.size() - shown));
+        return report.toString();
+    }
+
+    private List<PartitionTime> slowestPartitions(){
+        List<PartitionTime> slowest = new ArrayList<>(lastTickPartitions);
+        slowest.sort((a, b) -> Long.compare(b.nanos, a.nanos));
+        return slowest;
+    }
+
+    //A run of galaxies. weights holds running body counts, for splitting down the middle.
+    private class GalaxiesTask extends RecursiveAction{
+        private static final long serialVersionUID = 1L;
+        private final List<Galaxy> galaxies;
+        private final long[] weights;
+        private final int from;
+        private final int to;
+        private final double dt;
+
+        GalaxiesTask(List<Galaxy> galaxies, long[] weights, int from, int to, double dt){
+            this.galaxies = galaxies;
+            this.weights = weights;
+            this.from = from;
+            this.to = to;
+            this.dt = dt;
+        }
+
+        @Override
+        protected void compute(){
+            if(to - from == 1){
+                Galaxy galaxy = galaxies.get(from);
+                galaxy.tickGalaxy(dt);
+                new BodiesTask(galaxy, from, 0, galaxy.bodyCount(), dt).compute();
+                return;
+            }
+            if(weights[to] - weights[from] <= LEAF_BODIES){
+                long start = System.nanoTime();
+                for(int i = from; i < to; i++){
+                    Galaxy galaxy = galaxies.get(i);
+                    galaxy.tickGalaxy(dt);
+                    galaxy.tickBodies(0, galaxy.bodyCount(), dt);
+                }
+                tickPartitions.add(new PartitionTime(from, to, -1, -1, (int) (weights[to] - weights[from]) - (to - from),
+                    System.nanoTime() - start));
+                return;
+            }
+            //The first galaxy where the running weight passes the middle.
+            long middleWeight = (weights[from] + weights[to]) / 2;
+            int middle = Arrays.binarySearch(weights, from, to + 1, middleWeight);
+            middle = middle >= 0 ? middle : -middle - 1;
+            middle = Math.max(from + 1, Math.min(to - 1, middle));
+            invokeAll(new GalaxiesTask(galaxies, weights, from, middle, dt),
+                new GalaxiesTask(galaxies, weights, middle, to, dt));
+        }
+    }
+
+    //A range of bodies of one galaxy that was too big to do in one go.
+    private class BodiesTask extends RecursiveAction{
+        private static final long serialVersionUID = 1L;
+        private final Galaxy galaxy;
+        private final int galaxyIndex;
+        private final int from;
+        private final int to;
+        private final double dt;
+
+        BodiesTask(Galaxy galaxy, int galaxyIndex, int from, int to, double dt){
+            this.galaxy = galaxy;
+            this.galaxyIndex = galaxyIndex;
+            this.from = from;
+            this.to = to;
+            this.dt = dt;
+        }
+
+        @Override
+        protected void compute(){
+            if(to - from <= LEAF_BODIES){
+                long start = System.nanoTime();
+                galaxy.tickBodies(from, to, dt);
+                tickPartitions.add(new PartitionTime(galaxyIndex, galaxyIndex + 1, from, to, to - from,
+                    System.nanoTime() - start));
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new BodiesTask(galaxy, galaxyIndex, from, middle, dt),
+                new BodiesTask(galaxy, galaxyIndex, middle, to, dt));
+        }
+    }
+}
+
+
+/*A Star or a Planet is little more than a name, yet each one is an object
+of its own somewhere on the heap. With millions of them, a Galaxy spends
+more on object headers and pointers than on the bodies themselves, and
+going over them jumps all over memory.
+
+ColumnarGalaxy is still a Galaxy, but it keeps its bodies as columns: one
+array per attribute, with index i of every array describing body i. Names
+are dictionary encoded, so each body only stores an int id and a name that
+appears many times is stored once. Next to the names there's room for
+numbers a simulation needs, like mass and position.
+
+Adding a body appends to every column, amortized O(1). rotate(), spin()
+and shine() become plain loops over double arrays, which the JIT can turn
+into SIMD code.*/
+class ColumnarGalaxy extends Galaxy{
+    final NameDictionary names;
+    final BodyColumns starColumns;
+    final BodyColumns planetColumns;
+
+    public ColumnarGalaxy(String name){
+        this(name, new NameDictionary(), 16, 16);
+    }
+
+    //Galaxies can share a dictionary, so a name shared across galaxies is stored once.
+    public ColumnarGalaxy(String name, NameDictionary names, int expectedStars, int expectedPlanets){
+        //Our bodies live in the columns, the lists of Galaxy stay empty.
+        super(name, 0, 0);
+        this.names = names;
+        starColumns = new BodyColumns(expectedStars);
+        planetColumns = new BodyColumns(expectedPlanets);
+    }
+
+    @Override
+    public long addStar(Star star){
+        return addStar(star.name, 1, 0, 0, 0);
+    }
+
+    @Override
+    public long addPlanet(Planet planet){
+        return addPlanet(planet.name, 1, 0, 0, 0);
+    }
+
+    public long addStar(String name, double mass, double x, double y, double z){
+        changed();
+        return starColumns.add(names.encode(name), mass, x, y, z);
+    }
+
+    public long addPlanet(String name, double mass, double x, double y, double z){
+        changed();
+        return planetColumns.add(names.encode(name), mass, x, y, z);
+    }
+
+    /*Turns on a spatial index for stars and planets, so "which planets are
+    near this star" doesn't have to look at every planet. The index follows
+    the galaxy by itself: new bodies are added to it, and once bodies move
+    or get removed it's rebuilt on the next query. */
+    public void enableSpatialIndex(){
+        if(starColumns.spatialIndex == null){
+            starColumns.spatialIndex = new BodyKdTree(starColumns);
+            planetColumns.spatialIndex = new BodyKdTree(planetColumns);
+        }
+    }
+
+    //Handles of the planets within radius of the point.
+    public long[] planetsWithin(double x, double y, double z, double radius){
+        return index(planetColumns).within(x, y, z, radius);
+    }
+
+    public long[] planetsNear(long starHandle, double radius){
+        int star = starColumns.indexOf(starHandle);
+        if(star < 0)
+            return new long[0];
+        return planetsWithin(starColumns.x[star], starColumns.y[star], starColumns.z[star], radius);
+    }
+
+    //Handles of the k planets closest to the point, closest first. None for k <= 0.
+    public long[] nearestPlanets(double x, double y, double z, int k){
+        return index(planetColumns).nearest(x, y, z, k);
+    }
+
+    public long[] starsWithin(double x, double y, double z, double radius){
+        return index(starColumns).within(x, y, z, radius);
+    }
+
+    public long[] nearestStars(double x, double y, double z, int k){
+        return index(starColumns).nearest(x, y, z, k);
+    }
+
+    private static BodyKdTree index(BodyColumns columns){
+        if(columns.spatialIndex == null)
+            throw new IllegalStateException("Call enableSpatialIndex() first");
+        return columns.spatialIndex;
+    }
+
+    //Removal works on the columns the same way SwapRemoveList works on a list.
+    @Override
+    public void removeStar(long handle){
+        changed();
+        starColumns.removeHandle(handle);
+    }
+
+    @Override
+    public void removePlanet(long handle){
+        changed();
+        planetColumns.removeHandle(handle);
+    }
+
+    //Without a handle we look for the first body with that name.
+    @Override
+    public void removeStar(Star star){
+        changed();
+        starColumns.removeFirstNamed(names, star.name);
+    }
+
+    @Override
+    public void removePlanet(Planet planet){
+        changed();
+        planetColumns.removeFirstNamed(names, planet.name);
+    }
+
+    @Override
+    public void removeStarsIf(Predicate<? super Star> doomed){
+        removeStarsAt(i -> doomed.test(new Star(names.decode(starColumns.nameIds[i]))));
+    }
+
+    @Override
+    public void removePlanetsIf(Predicate<? super Planet> doomed){
+        removePlanetsAt(i -> doomed.test(new Planet(names.decode(planetColumns.nameIds[i]))));
+    }
+
+    /*Faster than the Predicate versions: the test gets a column index, so it
+    can look at starColumns.mass[i] and friends without making a Star. */
+    public void removeStarsAt(IntPredicate doomed){
+        changed();
+        starColumns.removeIf(doomed);
+    }
+
+    public void removePlanetsAt(IntPredicate doomed){
+        changed();
+        planetColumns.removeIf(doomed);
+    }
+
+    public int starCount(){
+        return starColumns.size;
+    }
+
+    public int planetCount(){
+        return planetColumns.size;
+    }
+
+    //Bodies are only turned back into objects when somebody asks for one.
+    public Star getStar(int index){
+        Objects.checkIndex(index, starColumns.size);
+        return new Star(names.decode(starColumns.nameIds[index]));
+    }
+
+    public Planet getPlanet(int index){
+        Objects.checkIndex(index, planetColumns.size);
+        return new Planet(names.decode(planetColumns.nameIds[index]));
+    }
+
+    @Override
+    public void rotate(){
+        super.rotate();
+        rotate(0.001);
+    }
+
+    //Turns every body around the galaxy's center (the z axis) by the given angle.
+    public void rotate(double radians){
+        changed();
+        double cos = Math.cos(radians);
+        double sin = Math.sin(radians);
+        starColumns.rotate(cos, sin);
+        planetColumns.rotate(cos, sin);
+    }
+
+    //Moves every planet's spin angle forward by its spin rate times dt.
+    public void spin(double dt){
+        changed();
+        double[] angle = planetColumns.spinAngle;
+        double[] rate = planetColumns.spinRate;
+        for(int i = 0; i < planetColumns.size; i++)
+            angle[i] += rate[i] * dt;
+    }
+
+    @Override
+    public int bodyCount(){
+        return starColumns.size + planetColumns.size;
+    }
+
+    //Bodies orbit with the galaxy and planets spin, all as loops over columns.
+    @Override
+    void tickBodies(int from, int to, double dt){
+        double cos = Math.cos(ROTATION_RATE * dt);
+        double sin = Math.sin(ROTATION_RATE * dt);
+        int starCount = starColumns.size;
+        starColumns.rotate(from, Math.min(to, starCount), cos, sin);
+        int planetFrom = Math.max(from, starCount) - starCount;
+        int planetTo = Math.max(to, starCount) - starCount;
+        planetColumns.rotate(planetFrom, planetTo, cos, sin);
+        double[] angle = planetColumns.spinAngle;
+        double[] rate = planetColumns.spinRate;
+        for(int i = planetFrom; i < planetTo; i++)
+            angle[i] = (angle[i] + rate[i] * dt) % (2 * Math.PI);
+    }
+
+    //Total light of all stars. Luminosity grows with mass^3.5, more or less.
+    public double shine(){
+        double[] mass = starColumns.mass;
+        double luminosity = 0;
+        for(int i = 0; i < starColumns.size; i++){
+            double m = mass[i];
+            luminosity += m * m * m * Math.sqrt(m);
+        }
+        return luminosity;
+    }
+}
+
+/*One array per attribute. All of them grow, swap and compact together. */
+class BodyColumns{
+    int size;
+    long[] handles;
+    final HandleTable handleTable = new HandleTable();
+    int[] nameIds;
+    double[] mass;
+    double[] x;
+    double[] y;
+    double[] z;
+    double[] spinAngle;
+    double[] spinRate;
+    //Optional, see ColumnarGalaxy.enableSpatialIndex().
+    BodyKdTree spatialIndex;
+
+    BodyColumns(int capacity){
+        capacity = Math.max(capacity, 4);
+        handles = new long[capacity];
+        nameIds = new int[capacity];
+        mass = new double[capacity];
+        x = new double[capacity];
+        y = new double[capacity];
+        z = new double[capacity];
+        spinAngle = new double[capacity];
+        spinRate = new double[capacity];
+    }
+
+    long add(int nameId, double bodyMass, double bodyX, double bodyY, double bodyZ){
+        if(size == nameIds.length)
+            grow(size + 1);
+        long handle = handleTable.allocate(size);
+        handles[size] = handle;
+        nameIds[size] = nameId;
+        mass[size] = bodyMass;
+        x[size] = bodyX;
+        y[size] = bodyY;
+        z[size] = bodyZ;
+        spinAngle[size] = 0;
+        spinRate[size] = 1;
+        size++;
+        if(spatialIndex != null)
+            spatialIndex.add(handle, bodyX, bodyY, bodyZ);
+        return handle;
+    }
+
+    /*Makes room for count bodies at the end and gives them handles, for
+    readers that fill whole columns themselves (UniverseSnapshot does).
+    Returns the index of the first new body. */
+    int addBulk(int count){
+        int start = size;
+        if(size + count > nameIds.length)
+            grow(size + count);
+        handleTable.reserve(count);
+        for(int i = start; i < start + count; i++)
+            handles[i] = handleTable.allocate(i);
+        size += count;
+        positionsChanged();
+        return start;
+    }
+
+    //Anything that moves bodies around tells the index to rebuild before the next query.
+    private void positionsChanged(){
+        if(spatialIndex != null)
+            spatialIndex.invalidate();
+    }
+
+    int indexOf(long handle){
+        return handleTable.indexOf(handle);
+    }
+
+    void removeHandle(long handle){
+        int index = handleTable.indexOf(handle);
+        if(index >= 0)
+            remove(index);
+    }
+
+    void removeFirstNamed(NameDictionary names, String name){
+        //One dictionary lookup, then we only compare ids.
+        int id = names.idOf(name);
+        if(id < 0)
+            return;
+        for(int i = 0; i < size; i++){
+            if(nameIds[i] == id){
+                remove(i);
+                return;
+            }
+        }
+    }
+
+    //Swap remove: the last body moves into the hole.
+    void remove(int index){
+        positionsChanged();
+        handleTable.free(handles[index]);
+        int last = size - 1;
+        if(index != last){
+            copy(last, index);
+            handleTable.move(handles[index], index);
+        }
+        size = last;
+    }
+
+    //One pass: every body that stays moves down over the removed ones, keeping its order.
+    void removeIf(IntPredicate doomed){
+        positionsChanged();
+        int kept = 0;
+        for(int i = 0; i < size; i++){
+            if(doomed.test(i)){
+                handleTable.free(handles[i]);
+            } else {
+                if(kept != i){
+                    copy(i, kept);
+                    handleTable.move(handles[kept], kept);
+                }
+                kept++;
+            }
+        }
+        size = kept;
+    }
+
+    private void copy(int from, int to){
+        handles[to] = handles[from];
+        nameIds[to] = nameIds[from];
+        mass[to] = mass[from];
+        x[to] = x[from];
+        y[to] = y[from];
+        z[to] = z[from];
+        spinAngle[to] = spinAngle[from];
+        spinRate[to] = spinRate[from];
+    }
+
+    private void grow(int minCapacity){
+        int capacity = Math.max(minCapacity, nameIds.length + (nameIds.length >> 1));
+        handles = Arrays.copyOf(handles, capacity);
+        nameIds = Arrays.copyOf(nameIds, capacity);
+        mass = Arrays.copyOf(mass, capacity);
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        z = Arrays.copyOf(z, capacity);
+        spinAngle = Arrays.copyOf(spinAngle, capacity);
+        spinRate = Arrays.copyOf(spinRate, capacity);
+    }
+
+    void rotate(double cos, double sin){
+        rotate(0, size, cos, sin);
+    }
+
+    void rotate(int from, int to, double cos, double sin){
+        positionsChanged();
+        double[] xs = x;
+        double[] ys = y;
+        for(int i = from; i < to; i++){
+            double oldX = xs[i];
+            xs[i] = oldX * cos - ys[i] * sin;
+            ys[i] = oldX * sin + ys[i] * cos;
+        }
+    }
+}
+
+/*A k-d tree over the positions of one kind of body. It's "implicit": no
+node objects, just the bodies' coordinates sorted into arrays so that the
+middle of every range splits it on x, y or z in turn (x at the top, then
+y, then z, then x again...). Radius and nearest neighbour searches only go
+down the halves that can contain an answer, O(log n) plus whatever they
+find. Small ranges at the bottom are just scanned.
+
+Bodies added after the last build wait in a pending list that every query
+scans too, and once that list gets big the tree is rebuilt. When bodies
+move or get removed the whole tree is out of date, so it's rebuilt right
+before the next query. Building is O(n log n). */
+class BodyKdTree{
+    private static final int LEAF_SIZE = 8;
+
+    private final BodyColumns columns;
+    private double[][] coordinates = new double[3][0];
+    private long[] handles = new long[0];
+    private int size;
+
+    private double[][] pendingCoordinates = new double[3][16];
+    private long[] pendingHandles = new long[16];
+    private int pending;
+
+    private volatile boolean stale = true;
+
+    BodyKdTree(BodyColumns columns){
+        this.columns = columns;
+    }
+
+    void invalidate(){
+        stale = true;
+    }
+
+    //Synchronized like the queries, which read the pending list while we may grow it.
+    synchronized void add(long handle, double x, double y, double z){
+        if(stale)
+            return;
+        if(pending == pendingHandles.length){
+            if(pending > 1024 && pending > size / 8){
+                stale = true;
+                return;
+            }
+            for(int dim = 0; dim < 3; dim++)
+                pendingCoordinates[dim] = Arrays.copyOf(pendingCoordinates[dim], pending * 2);
+            pendingHandles = Arrays.copyOf(pendingHandles, pending * 2);
+        }
+        pendingCoordinates[0][pending] = x;
+        pendingCoordinates[1][pending] = y;
+        pendingCoordinates[2][pending] = z;
+        pendingHandles[pending] = handle;
+        pending++;
+    }
+
+    private synchronized void refresh(){
+        if(!stale)
+            return;
+        size = columns.size;
+        coordinates = new double[][]{ Arrays.copyOf(columns.x, size), Arrays.copyOf(columns.y, size), Arrays.copyOf(columns.z, size) };
+        handles = Arrays.copyOf(columns.handles, size);
+        pending = 0;
+        build(0, size, 0);
+        stale = false;
+    }
+
+    private void build(int from, int to, int dim){
+        if(to - from <= LEAF_SIZE)
+            return;
+        int middle = (from + to) >>> 1;
+        select(from, to - 1, middle, dim);
+        build(from, middle, (dim + 1) % 3);
+        build(middle + 1, to, (dim + 1) % 3);
+    }
+
+    //Quickselect: puts the k-th smallest on dim at k, smaller ones before it, bigger ones after.
+    private void select(int left, int right, int k, int dim){
+        double[] values = coordinates[dim];
+        while(right > left){
+            double pivot = values[(left + right) >>> 1];
+            int i = left;
+            int j = right;
+            while(i <= j){
+                while(values[i] < pivot)
+                    i++;
+                while(values[j] > pivot)
+                    j--;
+                if(i <= j)
+                    swap(i++, j--);
+            }
+            if(k <= j)
+                right = j;
+            else if(k >= i)
+                left = i;
+            else
+                return;
+        }
+    }
+
+    private void swap(int i, int j){
+        for(double[] values : coordinates){
+            double value = values[i];
+            values[i] = values[j];
+            values[j] = value;
+        }
+        long handle = handles[i];
+        handles[i] = handles[j];
+        handles[j] = handle;
+    }
+
+    synchronized long[] within(double x, double y, double z, double radius){
+        refresh();
+        double[] point = { x, y, z };
+        LongList found = new LongList();
+        within(0, size, 0, point, radius * radius, radius, found);
+        for(int i = 0; i < pending; i++)
+            if(distanceSquared(pendingCoordinates, i, point) <= radius * radius)
+                found.add(pendingHandles[i]);
+        return found.toArray();
+    }
+
+    private void within(int from, int to, int dim, double[] point, double radiusSquared, double radius, LongList found){
+        if(to - from <= LEAF_SIZE){
+            for(int i = from; i < to; i++)
+                if(distanceSquared(coordinates, i, point) <= radiusSquared)
+                    found.add(handles[i]);
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        if(distanceSquared(coordinates, middle, point) <= radiusSquared)
+            found.add(handles[middle]);
+        double split = coordinates[dim][middle];
+        if(point[dim] - radius <= split)
+            within(from, middle, (dim + 1) % 3, point, radiusSquared, radius, found);
+        if(point[dim] + radius >= split)
+            within(middle + 1, to, (dim + 1) % 3, point, radiusSquared, radius, found);
+    }
+
+    synchronized long[] nearest(double x, double y, double z, int k){
+        if(k <= 0)
+            return new long[0];
+        refresh();
+        double[] point = { x, y, z };
+        NearestHeap heap = new NearestHeap(k);
+        nearest(0, size, 0, point, heap);
+        for(int i = 0; i < pending; i++)
+            heap.offer(distanceSquared(pendingCoordinates, i, point), pendingHandles[i]);
+        return heap.sortedHandles();
+    }
+
+    private void nearest(int from, int to, int dim, double[] point, NearestHeap heap){
+        if(to - from <= LEAF_SIZE){
+            for(int i = from; i < to; i++)
+                heap.offer(distanceSquared(coordinates, i, point), handles[i]);
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        heap.offer(distanceSquared(coordinates, middle, point), handles[middle]);
+        double difference = point[dim] - coordinates[dim][middle];
+        int next = (dim + 1) % 3;
+        //Go down our side first, then the other side only if it can still hold something closer.
+        if(difference < 0){
+            nearest(from, middle, next, point, heap);
+            if(difference * difference <= heap.worst())
+                nearest(middle + 1, to, next, point, heap);
+        } else {
+            nearest(middle + 1, to, next, point, heap);
+            if(difference * difference <= heap.worst())
+                nearest(from, middle, next, point, heap);
+        }
+    }
+
+    private static double distanceSquared(double[][] coordinates, int i, double[] point){
+        double dx = coordinates[0][i] - point[0];
+        double dy = coordinates[1][i] - point[1];
+        double dz = coordinates[2][i] - point[2];
+        return dx * dx + dy * dy + dz * dz;
+    }
+}
+
+/*Keeps the k closest bodies seen so far in a max-heap, farthest on top. */
+class NearestHeap{
+    private final double[] distances;
+    private final long[] handles;
+    private int size;
+
+    NearestHeap(int k){
+        if(k < 0)
+            throw new IllegalArgumentException("k must not be negative: " + k);
+        distances = new double[k];
+        handles = new long[k];
+    }
+
+    //Anything farther than this can't make it into the heap anymore. With k = 0 nothing can.
+    double worst(){
+        if(distances.length == 0)
+            return Double.NEGATIVE_INFINITY;
+        return size < distances.length ? Double.POSITIVE_INFINITY : distances[0];
+    }
+
+    void offer(double distance, long handle){
+        if(distances.length == 0)
+            return;
+        if(size < distances.length){
+            int i = size++;
+            while(i > 0 && distances[(i - 1) / 2] < distance){
+                distances[i] = distances[(i - 1) / 2];
+                handles[i] = handles[(i - 1) / 2];
+                i = (i - 1) / 2;
+            }
+            distances[i] = distance;
+            handles[i] = handle;
+        } else if(distance < distances[0]){
+            siftDown(distance, handle, size);
+        }
+    }
+
+    //Puts (distance, handle) in place of the top and sinks it to where it belongs.
+    private void siftDown(double distance, long handle, int heapSize){
+        int i = 0;
+        while(true){
+            int child = 2 * i + 1;
+            if(child >= heapSize)
+                break;
+            if(child + 1 < heapSize && distances[child + 1] > distances[child])
+                child++;
+            if(distances[child] <= distance)
+                break;
+            distances[i] = distances[child];
+            handles[i] = handles[child];
+            i = child;
+        }
+        distances[i] = distance;
+        handles[i] = handle;
+    }
+
+    //Empties the heap, closest first.
+    long[] sortedHandles(){
+        long[] sorted = new long[size];
+        for(int last = size - 1; last >= 0; last--){
+            sorted[last] = handles[0];
+            siftDown(distances[last], handles[last], last);
+        }
+        size = 0;
+        return sorted;
+    }
+}
+
+/*A growable list of longs, so results don't get boxed. */
+class LongList{
+    private long[] values = new long[16];
+    private int size;
+
+    void add(long value){
+        if(size == values.length)
+            values = Arrays.copyOf(values, size * 2);
+        values[size++] = value;
+    }
+
+    long[] toArray(){
+        return Arrays.copyOf(values, size);
+    }
+}
+
+/*Gives every distinct name an int id, and turns ids back into names.
+Synchronized, because galaxies sharing it may be built in parallel. */
+class NameDictionary{
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+
+    public synchronized int encode(String name){
+        Integer id = ids.get(name);
+        if(id == null){
+            id = names.size();
+            ids.put(name, id);
+            names.add(name);
+        }
+        return id;
+    }
+
+    //-1 for a name that was never encoded.
+    public synchronized int idOf(String name){
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    public synchronized String decode(int id){
+        return names.get(id);
+    }
+
+    public synchronized int size(){
+        return names.size();
+    }
+}
+
+
+/*Building a huge universe every time we start takes ages. Instead, we can
+save it to a file once and open it again later.
+
+The file is one header, then one record per galaxy, then a directory:
+
+    header:    magic, format version, directory offset, universe age and radius
+    galaxy:    kind (objects or columns), name, rotation, a table of the
+               names its bodies use, then its stars and planets, with every
+               body pointing into that name table
+    directory: galaxy count, then offset, length and name of every galaxy
+
+Opening only reads the header and the directory. A galaxy is memory mapped
+and decoded the first time somebody asks for it, so opening takes about as
+long as reading a few bytes per galaxy, however many bodies there are.
+
+checkpoint() writes only the galaxies that changed since they were loaded
+or last written (that's what Galaxy.version is for). Their new records and
+a new directory are appended, then the header is pointed at the new
+directory. Until that last write the old directory still describes a
+complete universe, so a crash in the middle of a checkpoint loses the
+checkpoint, not the file. Old records stay behind as garbage until the next
+full save(). Adding or removing galaxies also needs a full save().
+
+A running simulation changes every galaxy on every tick, so a checkpoint
+right after ticking rewrites all loaded galaxies. Checkpoints pay off when
+only a few galaxies are edited between them, like a paused universe that
+is being built by hand. */
+class UniverseSnapshot implements AutoCloseable{
+    private static final int MAGIC = 0x554E4956;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final byte OBJECT_GALAXY = 0;
+    private static final byte COLUMNAR_GALAXY = 1;
+    //A name id plus mass, x, y, z, spin angle and spin rate.
+    private static final int COLUMN_BYTES_PER_BODY = Integer.BYTES + 6 * Double.BYTES;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final String[] galaxyNames;
+    private final Galaxy[] loaded;
+    private final int[] savedVersions;
+    private double age;
+    private double radius;
+    private Universe universe;
+
+    private UniverseSnapshot(Path file, FileChannel channel, long[] offsets, int[] lengths, String[] galaxyNames,
+            double age, double radius){
+        this.file = file;
+        this.channel = channel;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.galaxyNames = galaxyNames;
+        this.loaded = new Galaxy[offsets.length];
+        this.savedVersions = new int[offsets.length];
+        this.age = age;
+        this.radius = radius;
+    }
+
+    //Writes the whole universe to file, replacing whatever was there.
+    public static void save(Universe universe, Path file) throws IOException{
+        try(FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)){
+            out.position(HEADER_BYTES);
+            List<Galaxy> galaxies = universe.galaxies;
+            long[] offsets = new long[galaxies.size()];
+            int[] lengths = new int[galaxies.size()];
+            String[] names = new String[galaxies.size()];
+            for(int i = 0; i < galaxies.size(); i++){
+                Galaxy galaxy = galaxies.get(i);
+                offsets[i] = out.position();
+                lengths[i] = writeGalaxy(out, galaxy);
+                names[i] = galaxy.name;
+            }
+            long directory = writeDirectory(out, offsets, lengths, names);
+            out.force(false);
+            writeHeader(out, directory, universe.age, universe.radius);
+            out.force(false);
+        }
+    }
+
+    //Read only, so a snapshot on a read-only file or disk opens fine. Only checkpoint() writes.
+    public static UniverseSnapshot open(Path file) throws IOException{
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+            if(header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION)
+                throw new IOException(file + " is not a universe snapshot");
+            long directoryOffset = header.getLong();
+            double age = header.getDouble();
+            double radius = header.getDouble();
+
+            ByteBuffer directory = channel.map(FileChannel.MapMode.READ_ONLY, directoryOffset, channel.size() - directoryOffset);
+            int count = directory.getInt();
+            long[] offsets = new long[count];
+            int[] lengths = new int[count];
+            String[] names = new String[count];
+            for(int i = 0; i < count; i++){
+                offsets[i] = directory.getLong();
+                lengths[i] = directory.getInt();
+                names[i] = readString(directory);
+            }
+            return new UniverseSnapshot(file, channel, offsets, lengths, names, age, radius);
+        } catch(IOException | RuntimeException e){
+            channel.close();
+            throw e;
+        }
+    }
+
+    public int galaxyCount(){
+        return offsets.length;
+    }
+
+    //Known without loading the galaxy.
+    public String galaxyName(int index){
+        return galaxyNames[index];
+    }
+
+    //Maps and decodes the galaxy the first time it's asked for.
+    public synchronized Galaxy galaxy(int index) throws IOException{
+        if(loaded[index] == null){
+            ByteBuffer record = channel.map(FileChannel.MapMode.READ_ONLY, offsets[index], lengths[index]);
+            loaded[index] = readGalaxy(record);
+            savedVersions[index] = loaded[index].version;
+        }
+        return loaded[index];
+    }
+
+    //The whole universe. This loads every galaxy, so it's as slow as the file is big.
+    public synchronized Universe universe() throws IOException{
+        if(universe == null){
+            Universe opened = new Universe(galaxyCount());
+            for(int i = 0; i < galaxyCount(); i++)
+                opened.addGalaxy(galaxy(i));
+            opened.age = age;
+            opened.radius = radius;
+            universe = opened;
+        }
+        return universe;
+    }
+
+    //Appends the galaxies that changed and points the header at a new directory. Returns how many were written.
+    public synchronized int checkpoint() throws IOException{
+        List<Integer> changed = new ArrayList<>();
+        for(int i = 0; i < loaded.length; i++)
+            if(loaded[i] != null && loaded[i].version != savedVersions[i])
+                changed.add(i);
+        if(universe != null){
+            age = universe.age;
+            radius = universe.radius;
+        }
+
+        long[] newOffsets = offsets.clone();
+        int[] newLengths = lengths.clone();
+        int[] versions = new int[changed.size()];
+        try(FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE)){
+            out.position(out.size());
+            for(int c = 0; c < changed.size(); c++){
+                int i = changed.get(c);
+                versions[c] = loaded[i].version;
+                newOffsets[i] = out.position();
+                newLengths[i] = writeGalaxy(out, loaded[i]);
+            }
+            long directory = writeDirectory(out, newOffsets, newLengths, galaxyNames);
+            out.force(false);
+            writeHeader(out, directory, age, radius);
+            out.force(false);
+        }
+
+        System.arraycopy(newOffsets, 0, offsets, 0, offsets.length);
+        System.arraycopy(newLengths, 0, lengths, 0, lengths.length);
+        for(int c = 0; c < changed.size(); c++)
+            savedVersions[changed.get(c)] = versions[c];
+        return changed.size();
+    }
+
+    @Override
+    public void close() throws IOException{
+        channel.close();
+    }
+
+    private static void writeHeader(FileChannel out, long directory, double age, double radius) throws IOException{
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(directory).putDouble(age).putDouble(radius).flip();
+        out.write(header, 0);
+    }
+
+    private static long writeDirectory(FileChannel out, long[] offsets, int[] lengths, String[] names) throws IOException{
+        long start = out.position();
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(out), 1 << 16));
+        data.writeInt(offsets.length);
+        for(int i = 0; i < offsets.length; i++){
+            data.writeLong(offsets[i]);
+            data.writeInt(lengths[i]);
+            writeString(data, names[i]);
+        }
+        data.flush();
+        return start;
+    }
+
+    //Writes at the channel's position and returns how many bytes it took.
+    private static int writeGalaxy(FileChannel out, Galaxy galaxy) throws IOException{
+        long start = out.position();
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(out), 1 << 16));
+        boolean columnar = galaxy instanceof ColumnarGalaxy;
+        data.writeByte(columnar ? COLUMNAR_GALAXY : OBJECT_GALAXY);
+        writeString(data, galaxy.name == null ? "" : galaxy.name);
+        data.writeDouble(galaxy.rotationAngle);
+        if(columnar){
+            ColumnarGalaxy columns = (ColumnarGalaxy) galaxy;
+            //The dictionary may be shared with other galaxies, only the names we use go in the table.
+            Map<Integer, Integer> localIds = new HashMap<>();
+            List<String> table = new ArrayList<>();
+            int[] starNames = localNames(columns.starColumns, columns.names, localIds, table);
+            int[] planetNames = localNames(columns.planetColumns, columns.names, localIds, table);
+            writeNameTable(data, table);
+            writeColumns(data, columns.starColumns, starNames);
+            writeColumns(data, columns.planetColumns, planetNames);
+        } else {
+            Map<String, Integer> localIds = new HashMap<>();
+            List<String> table = new ArrayList<>();
+            for(Star star : galaxy.stars)
+                localIds.computeIfAbsent(star.name, name -> { table.add(name); return table.size() - 1; });
+            for(Planet planet : galaxy.planets)
+                localIds.computeIfAbsent(planet.name, name -> { table.add(name); return table.size() - 1; });
+            writeNameTable(data, table);
+            data.writeInt(galaxy.stars.size());
+            for(Star star : galaxy.stars){
+                data.writeInt(localIds.get(star.name));
+                data.writeDouble(star.age);
+            }
+            data.writeInt(galaxy.planets.size());
+            for(Planet planet : galaxy.planets){
+                data.writeInt(localIds.get(planet.name));
+                data.writeDouble(planet.spinAngle);
+                data.writeDouble(planet.spinRate);
+            }
+        }
+        data.flush();
+        long length = out.position() - start;
+        if(length > Integer.MAX_VALUE)
+            throw new IOException("Galaxy " + galaxy.name + " is too big for one record");
+        return (int) length;
+    }
+
+    private static int[] localNames(BodyColumns columns, NameDictionary names, Map<Integer, Integer> localIds, List<String> table){
+        int[] local = new int[columns.size];
+        for(int i = 0; i < columns.size; i++){
+            local[i] = localIds.computeIfAbsent(columns.nameIds[i], id -> {
+                table.add(names.decode(id));
+                return table.size() - 1;
+            });
+        }
+        return local;
+    }
+
+    private static void writeNameTable(DataOutputStream data, List<String> table) throws IOException{
+        data.writeInt(table.size());
+        for(String name : table)
+            writeString(data, name);
+    }
+
+    //Column by column, so reading them back is a bulk copy per column.
+    private static void writeColumns(DataOutputStream data, BodyColumns columns, int[] nameIds) throws IOException{
+        int size = columns.size;
+        data.writeInt(size);
+        for(int i = 0; i < size; i++)
+            data.writeInt(nameIds[i]);
+        for(double[] column : new double[][]{ columns.mass, columns.x, columns.y, columns.z, columns.spinAngle, columns.spinRate })
+            for(int i = 0; i < size; i++)
+                data.writeDouble(column[i]);
+    }
+
+    private static Galaxy readGalaxy(ByteBuffer record){
+        byte kind = record.get();
+        String name = readString(record);
+        double rotationAngle = record.getDouble();
+        String[] table = new String[record.getInt()];
+        for(int i = 0; i < table.length; i++)
+            table[i] = readString(record);
+
+        Galaxy galaxy;
+        if(kind == COLUMNAR_GALAXY){
+            NameDictionary names = new NameDictionary();
+            //The table has no duplicates, so its positions become the dictionary's ids.
+            for(String tableName : table)
+                names.encode(tableName);
+            //Both counts first, so the columns are made the right size once.
+            int starCount = record.getInt(record.position());
+            int planetCount = record.getInt(record.position() + Integer.BYTES + starCount * COLUMN_BYTES_PER_BODY);
+            ColumnarGalaxy columns = new ColumnarGalaxy(name, names, starCount, planetCount);
+            readColumns(record, columns.starColumns);
+            readColumns(record, columns.planetColumns);
+            galaxy = columns;
+        } else {
+            int starCount = record.getInt();
+            galaxy = new Galaxy(name, starCount, 16);
+            for(int i = 0; i < starCount; i++){
+                Star star = new Star(table[record.getInt()]);
+                star.age = record.getDouble();
+                galaxy.stars.add(star);
+            }
+            int planetCount = record.getInt();
+            galaxy.planets = new SwapRemoveList<>(planetCount);
+            for(int i = 0; i < planetCount; i++){
+                Planet planet = new Planet(table[record.getInt()]);
+                planet.spinAngle = record.getDouble();
+                planet.spinRate = record.getDouble();
+                galaxy.planets.add(planet);
+            }
+        }
+        galaxy.rotationAngle = rotationAngle;
+        return galaxy;
+    }
+
+    //Every column is one bulk copy straight into the galaxy's arrays.
+    private static void readColumns(ByteBuffer record, BodyColumns columns){
+        int size = record.getInt();
+        int start = columns.addBulk(size);
+        record.asIntBuffer().get(columns.nameIds, start, size);
+        record.position(record.position() + size * Integer.BYTES);
+        for(double[] column : new double[][]{ columns.mass, columns.x, columns.y, columns.z, columns.spinAngle, columns.spinRate }){
+            record.asDoubleBuffer().get(column, start, size);
+            record.position(record.position() + size * Double.BYTES);
+        }
+    }
+
+    private static void writeString(DataOutputStream data, String value) throws IOException{
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer){
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
+
+
 /*Since we've all the neccessary classes at our disposal, let's
 begin to create a universe. */
 
@@ -130,6 +1713,49 @@ public class FacadePattern{
         
         cFacade.createUniverse();
         //As you see, this far more easier. 
+
+        //The facade can also build a much bigger universe in one call.
+        CreationFacade bigBang = new CreationFacade(new Universe(100), null, null, null);
+        bigBang.createUniverse(100, 1000, 1000);
+        System.out.println("Created " + bigBang.universe.galaxies.size() + " galaxies.");
+
+        //A columnar galaxy is used like any other galaxy.
+        ColumnarGalaxy andromeda = new ColumnarGalaxy("Andromeda");
+        andromeda.addStar(new Star("Alpheratz"));
+        andromeda.addPlanet("Mirach b", 0.002, 1, 0, 0);
+        andromeda.rotate();
+        System.out.println(andromeda.starCount() + " star, " + andromeda.planetCount() + " planet, luminosity " + andromeda.shine());
+
+        //Removing is O(1) with the handle we got when adding.
+        Galaxy triangulum = new Galaxy("Triangulum");
+        long doomedStar = triangulum.addStar(new Star("Doomed"));
+        triangulum.addStar(new Star("Survivor"));
+        triangulum.addPlanet(new Planet("Rogue"));
+        triangulum.removeStar(doomedStar);
+        triangulum.removePlanetsIf(planet -> planet.name.startsWith("R"));
+        System.out.println(triangulum.stars.size() + " star, " + triangulum.planets.size() + " planets left");
+
+        //Let time pass in the big universe, 100 ticks of 1 time unit each.
+        UniverseTickEngine engine = bigBang.startSimulation(1.0);
+        engine.run(100);
+        System.out.print(engine.report());
+
+        //Save a universe and open it again, its galaxies are only read when asked for.
+        Universe saved = new Universe();
+        saved.addGalaxy(triangulum);
+        saved.addGalaxy(andromeda);
+        CreationFacade keeper = new CreationFacade(saved, null, null, null);
+        try {
+            Path file = Files.createTempFile("universe", ".snapshot");
+            keeper.saveUniverse(file);
+            try(UniverseSnapshot snapshot = CreationFacade.openUniverse(file)){
+                ColumnarGalaxy reopened = (ColumnarGalaxy) snapshot.galaxy(1);
+                System.out.println(snapshot.galaxyName(1) + " reopened with " + reopened.starCount() + " star, luminosity " + reopened.shine());
+            }
+            Files.delete(file);
+        } catch(IOException e){
+            System.out.println("Couldn't save the universe: " + e.getMessage());
+        }
         
     }
 }
@@ -168,11 +1794,305 @@ class CreationFacade{
     
 
 
+    /*Sometimes one galaxy isn't enough. This one builds galaxyCount of them,
+    each with its own stars and planets, and adds them all to our universe.
+
+    Galaxies don't know about each other, so they can be built in parallel.
+    Every worker gets a chunk of galaxies and builds them into a list of its
+    own, with every list sized up front, so nobody ever waits for a lock.
+    At the end the chunks are added to the universe in order. Hand the
+    facade a Universe made with the expected galaxy count and that list
+    doesn't have to grow either. */
+    public void createUniverse(int galaxyCount, int starsPerGalaxy, int planetsPerGalaxy){
+        int chunkCount = Math.min(galaxyCount, Runtime.getRuntime().availableProcessors() * 4);
+        List<List<Galaxy>> chunks = IntStream.range(0, chunkCount).parallel()
+            .mapToObj(chunk -> buildGalaxies((int) ((long) chunk * galaxyCount / chunkCount),
+                (int) ((long) (chunk + 1) * galaxyCount / chunkCount), starsPerGalaxy, planetsPerGalaxy))
+            .collect(Collectors.toList());
+
+        for(List<Galaxy> chunk : chunks)
+            universe.addGalaxies(chunk);
+    }
+
+    private static List<Galaxy> buildGalaxies(int from, int to, int starsPerGalaxy, int planetsPerGalaxy){
+        List<Galaxy> built = new ArrayList<>(to - from);
+        for(int g = from; g < to; g++){
+            Galaxy galaxy = new Galaxy("Galaxy-" + g, starsPerGalaxy, planetsPerGalaxy);
+            for(int i = 0; i < starsPerGalaxy; i++)
+                galaxy.addStar(new Star("Star-" + g + "-" + i));
+            for(int i = 0; i < planetsPerGalaxy; i++)
+                galaxy.addPlanet(new Planet("Planet-" + g + "-" + i));
+            built.add(galaxy);
+        }
+        return built;
+    }
+
+    /*Sets the universe in motion. With a fixed step the run is reproducible,
+    pass 0 to follow the wall clock instead. */
+    public UniverseTickEngine startSimulation(double fixedStep){
+        universe.startExpanding();
+        return new UniverseTickEngine(universe, fixedStep);
+    }
+
+    /*Saves our universe, so next time we can open it instead of creating it.
+    Opening is static: there's no universe to hand the facade yet. */
+    public void saveUniverse(Path file) throws IOException{
+        UniverseSnapshot.save(universe, file);
+    }
+
+    public static UniverseSnapshot openUniverse(Path file) throws IOException{
+        return UniverseSnapshot.open(file);
+    }
+
     //Facedes are just fancy scripts, change my mind. 
 
 }
 
 
+/*How long does a 10 million body universe take? Once one galaxy at a time
+on one thread, once through the facade's parallel bulk build. Run it with
+"java -Xmx4g UniverseBuildBenchmark". */
+class UniverseBuildBenchmark{
+    public static void main(String[] args) {
+        int galaxyCount = 1000;
+        int starsPerGalaxy = 5000;
+        int planetsPerGalaxy = 5000;
 
+        for(int round = 0; round < 3; round++){
+            long start = System.nanoTime();
+            Universe oneByOne = new Universe();
+            for(int g = 0; g < galaxyCount; g++){
+                Galaxy galaxy = new Galaxy("Galaxy-" + g);
+                for(int i = 0; i < starsPerGalaxy; i++)
+                    galaxy.addStar(new Star("Star-" + g + "-" + i));
+                for(int i = 0; i < planetsPerGalaxy; i++)
+                    galaxy.addPlanet(new Planet("Planet-" + g + "-" + i));
+                oneByOne.addGalaxy(galaxy);
+            }
+            long oneByOneNanos = System.nanoTime() - start;
+            oneByOne = null;
 
+            start = System.nanoTime();
+            CreationFacade facade = new CreationFacade(new Universe(galaxyCount), null, null, null);
+            facade.createUniverse(galaxyCount, starsPerGalaxy, planetsPerGalaxy);
+            long bulkNanos = System.nanoTime() - start;
+            facade = null;
+
+            System.out.printf("round %d: %,d bodies one by one %d ms, bulk %d ms on %d cores%n", round,
+                galaxyCount * (starsPerGalaxy + planetsPerGalaxy), oneByOneNanos / 1_000_000, bulkNanos / 1_000_000,
+                Runtime.getRuntime().availableProcessors());
+        }
+    }
+}
+
+
+/*Memory and scan speed of one galaxy with a million stars: as Star objects
+in a list (with the same mass and position fields, so it's a fair fight)
+and as columns. Run it with "java ColumnarGalaxyBenchmark". */
+class ColumnarGalaxyBenchmark{
+    //What a Star would look like if it carried the same attributes as a column.
+    static class HeavyStar extends Star{
+        double mass, x, y, z;
+
+        HeavyStar(String name, double mass, double x, double y, double z){
+            super(name);
+            this.mass = mass;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+    }
+
+    public static void main(String[] args) {
+        int starCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        //Many stars share a catalogue name, as they would in a generated universe.
+        String[] catalogue = new String[1000];
+        for(int i = 0; i < catalogue.length; i++)
+            catalogue[i] = "Star-" + i;
+        Random random = new Random(42);
 
+        long before = usedMemory();
+        List<HeavyStar> list = new ArrayList<>();
+        for(int i = 0; i < starCount; i++)
+            list.add(new HeavyStar(new String(catalogue[i % catalogue.length]), random.nextDouble() * 10,
+                random.nextDouble(), random.nextDouble(), random.nextDouble()));
+        long listBytes = usedMemory() - before;
+
+        before = usedMemory();
+        ColumnarGalaxy columns = new ColumnarGalaxy("Columns", new NameDictionary(), starCount, 0);
+        for(int i = 0; i < starCount; i++)
+            columns.addStar(new String(catalogue[i % catalogue.length]), random.nextDouble() * 10,
+                random.nextDouble(), random.nextDouble(), random.nextDouble());
+        long columnBytes = usedMemory() - before;
+        System.out.printf("%,d stars: list of objects %,d MB, columns %,d MB%n", starCount, listBytes >> 20, columnBytes >> 20);
+
+        for(int round = 0; round < 5; round++){
+            long start = System.nanoTime();
+            double cos = Math.cos(0.001), sin = Math.sin(0.001);
+            double luminosity = 0;
+            for(HeavyStar star : list){
+                double oldX = star.x;
+                star.x = oldX * cos - star.y * sin;
+                star.y = oldX * sin + star.y * cos;
+                luminosity += star.mass * star.mass * star.mass * Math.sqrt(star.mass);
+            }
+            long listNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            columns.rotate(0.001);
+            luminosity -= columns.shine();
+            long columnNanos = System.nanoTime() - start;
+
+            System.out.printf("round %d: rotate+shine list %.0f M stars/s, columns %.0f M stars/s (%.3f)%n", round,
+                starCount * 1e3 / listNanos, starCount * 1e3 / columnNanos, luminosity);
+        }
+    }
+
+    static long usedMemory(){
+        Runtime runtime = Runtime.getRuntime();
+        for(int i = 0; i < 3; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
+
+
+/*One giant galaxy and lots of small ones, so the work is as uneven as it
+gets. Runs the same fixed-step simulation twice to show it ends in the same
+state, and prints ticks per second and the time of the slowest partitions.
+Run it with "java -Xmx4g UniverseTickBenchmark". */
+class UniverseTickBenchmark{
+    public static void main(String[] args) {
+        double first = simulate();
+        double second = simulate();
+        if(first != second)
+            throw new IllegalStateException("Fixed step runs ended differently: " + first + " vs " + second);
+        System.out.println("Both fixed step runs ended in the same state: " + first);
+    }
+
+    static double simulate(){
+        Universe universe = new Universe(1001);
+        Random random = new Random(42);
+        ColumnarGalaxy giant = new ColumnarGalaxy("Giant", new NameDictionary(), 2_000_000, 1_000_000);
+        for(int i = 0; i < 2_000_000; i++)
+            giant.addStar("Giant star", random.nextDouble(), random.nextDouble(), random.nextDouble(), 0);
+        for(int i = 0; i < 1_000_000; i++)
+            giant.addPlanet("Giant planet", random.nextDouble(), random.nextDouble(), random.nextDouble(), 0);
+        universe.addGalaxy(giant);
+        CreationFacade facade = new CreationFacade(universe, null, null, null);
+        facade.createUniverse(1000, 500, 500);
+
+        UniverseTickEngine engine = new UniverseTickEngine(universe, 0.5);
+        engine.run(50);
+        System.out.print(engine.report());
+
+        //Something that depends on every body, to compare runs.
+        double checksum = 0;
+        for(int i = 0; i < giant.starColumns.size; i++)
+            checksum += giant.starColumns.x[i];
+        for(Galaxy galaxy : universe.galaxies)
+            for(Planet planet : galaxy.planets)
+                checksum += planet.spinAngle;
+        return checksum;
+    }
+}
+
+
+/*A galaxy with a million planets, and the same radius and nearest
+neighbour questions answered by the spatial index and by looking at every
+planet. Run it with "java SpatialIndexBenchmark". */
+class SpatialIndexBenchmark{
+    public static void main(String[] args) {
+        int planetCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Random random = new Random(42);
+        ColumnarGalaxy galaxy = new ColumnarGalaxy("Indexed", new NameDictionary(), 16, planetCount);
+        galaxy.enableSpatialIndex();
+        for(int i = 0; i < planetCount; i++)
+            galaxy.addPlanet("Planet", 1, random.nextGaussian() * 1000, random.nextGaussian() * 1000, random.nextGaussian() * 100);
+
+        long start = System.nanoTime();
+        galaxy.planetsWithin(0, 0, 0, 1);
+        System.out.printf("index built in %d ms%n", (System.nanoTime() - start) / 1_000_000);
+
+        int queries = 1000;
+        double[][] points = new double[queries][];
+        for(int q = 0; q < queries; q++)
+            points[q] = new double[]{ random.nextGaussian() * 1000, random.nextGaussian() * 1000, random.nextGaussian() * 100 };
+
+        start = System.nanoTime();
+        long found = 0;
+        for(double[] point : points)
+            found += galaxy.planetsWithin(point[0], point[1], point[2], 50).length;
+        long indexedWithin = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        long nearestSum = 0;
+        for(double[] point : points)
+            nearestSum += galaxy.nearestPlanets(point[0], point[1], point[2], 10)[9];
+        long indexedNearest = System.nanoTime() - start;
+
+        BodyColumns planets = galaxy.planetColumns;
+        start = System.nanoTime();
+        long bruteFound = 0;
+        long bruteNearestSum = 0;
+        for(double[] point : points){
+            NearestHeap heap = new NearestHeap(10);
+            for(int i = 0; i < planets.size; i++){
+                double dx = planets.x[i] - point[0], dy = planets.y[i] - point[1], dz = planets.z[i] - point[2];
+                double distance = dx * dx + dy * dy + dz * dz;
+                if(distance <= 50 * 50)
+                    bruteFound++;
+                heap.offer(distance, planets.handles[i]);
+            }
+            bruteNearestSum += heap.sortedHandles()[9];
+        }
+        long brute = System.nanoTime() - start;
+
+        if(found != bruteFound || nearestSum != bruteNearestSum)
+            throw new IllegalStateException("Index and brute force disagree");
+        System.out.printf("%,d planets: within %.1f us, nearest 10 %.1f us per query; brute force does both in %.1f us%n",
+            planetCount, indexedWithin / 1e3 / queries, indexedNearest / 1e3 / queries, brute / 1e3 / queries);
+    }
+}
+
+
+/*Saves a 10 million body universe, opens it again, touches one galaxy,
+changes it and writes a checkpoint. Run it with
+"java -Xmx4g UniverseSnapshotBenchmark", it needs about 400 MB of disk. */
+class UniverseSnapshotBenchmark{
+    public static void main(String[] args) throws IOException {
+        Path file = Files.createTempFile("universe", ".snapshot");
+        try {
+            CreationFacade facade = new CreationFacade(new Universe(1000), null, null, null);
+            facade.createUniverse(1000, 5000, 5000);
+            long start = System.nanoTime();
+            facade.saveUniverse(file);
+            System.out.printf("saved 10,000,000 bodies in %d ms, %,d MB%n", (System.nanoTime() - start) / 1_000_000,
+                Files.size(file) >> 20);
+            facade = null;
+
+            start = System.nanoTime();
+            try(UniverseSnapshot snapshot = CreationFacade.openUniverse(file)){
+                System.out.printf("opened %d galaxies in %.1f ms%n", snapshot.galaxyCount(), (System.nanoTime() - start) / 1e6);
+
+                start = System.nanoTime();
+                Galaxy galaxy = snapshot.galaxy(500);
+                System.out.printf("loaded %s (%,d bodies) on first access in %.1f ms%n", galaxy.name, galaxy.bodyCount(),
+                    (System.nanoTime() - start) / 1e6);
+
+                galaxy.addStar(new Star("Newcomer"));
+                long before = Files.size(file);
+                start = System.nanoTime();
+                int written = snapshot.checkpoint();
+                System.out.printf("checkpoint wrote %d galaxy, %,d KB, in %.1f ms%n", written, (Files.size(file) - before) >> 10,
+                    (System.nanoTime() - start) / 1e6);
+            }
+
+            try(UniverseSnapshot reopened = CreationFacade.openUniverse(file)){
+                System.out.println("after reopening, galaxy 500 has " + reopened.galaxy(500).stars.size() + " stars");
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -1,4 +1,9 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Iterator pattern helps us iterato through objects without knowing or dealing
@@ -42,22 +47,38 @@ class Student{
 class Classroom{
     //Our Student array.
     private Student[] students;
-    private int position;
+    /*Volatile, so that a reader who sees position == n also sees the first
+    n students completely filled in. modCount goes up on every change and is
+    what fail-fast iterators watch. */
+    private volatile int position;
+    private volatile int modCount;
+    //Indexes for finding a student without going through all of them.
+    private StudentNumberIndex numberIndex;
+    private TreeMap<String, int[]> nameIndex;
     
     
     public Classroom(int number){
         students= new Student[number];
         position=0;
+        numberIndex = new StudentNumberIndex();
+        nameIndex = new TreeMap<>();
     }
 
-    //Method to add student. 
-    public void addStudent(String name, String number){
+    /*Method to add student. Writers take turns, readers never wait for them.
+    A student without a number or a name is still added, the index for the
+    missing one just can't find them. */
+    public synchronized void addStudent(String name, String number){
         if(students.length!=position){
             if(students[position]==null)
                 students[position]=new Student();
             students[position].setName(name);
             students[position].setNumber(number);
+            if(number != null)
+                numberIndex.add(number, position);
+            if(name != null)
+                addToNameIndex(name, position);
             position++;
+            modCount++;
 
         } else {
             System.err.println("Max number reached");
@@ -69,9 +90,186 @@ class Classroom{
         return new ClassroomIterator(students);
     }
 
+    /*While another thread is adding students, createIterator() may read a
+    slot that's only half written. The next two iterators are safe for that:
+
+    A fail-fast iterator throws ConcurrentModificationException as soon as
+    the classroom changed after the iterator was made. It costs one volatile
+    read per step.
+
+    A snapshot iterator sees the classroom as it was when the iterator was
+    made, and goes on as if nothing happened. Usually that takes a copy of
+    the array on every write (copy-on-write). Our students are only ever
+    appended and a published slot is never written again, so the snapshot
+    is just the array plus the position we read: nothing to copy, and
+    readers never block writers. */
+    public Iterator<Student> createFailFastIterator(){
+        return new FailFastClassroomIterator();
+    }
+
+    public Iterator<Student> createSnapshotIterator(){
+        return Arrays.asList(students).subList(0, position).iterator();
+    }
+
+    private class FailFastClassroomIterator implements Iterator<Student>{
+        private final int expectedModCount = modCount;
+        private final int end = position;
+        private int count;
+
+        @Override
+        public boolean hasNext() {
+            checkForModification();
+            return count < end;
+        }
+
+        @Override
+        public Student next() {
+            checkForModification();
+            if(count >= end)
+                throw new NoSuchElementException();
+            return students[count++];
+        }
+
+        private void checkForModification(){
+            if(modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+        }
+    }
+
+    /*Students are added one after another from slot 0, so the first null
+    ClassroomIterator stops at is always slot "position". A spliterator
+    over [0, position) therefore sees exactly the same students, and it can
+    split that range in half as often as the fork-join pool likes. */
+    public Spliterator<Student> spliterator(){
+        return new ClassroomSpliterator(students, 0, position);
+    }
+
+    public Stream<Student> stream(){
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    public Stream<Student> parallelStream(){
+        return StreamSupport.stream(spliterator(), true);
+    }
+
+    //O(1): the number index points straight at the slot. Lookups share the
+    //writers' lock, the indexes aren't built for reading while they change.
+    public synchronized Student findByNumber(String number){
+        if(number == null)
+            return null;
+        int slot = numberIndex.find(number, students);
+        return slot < 0 ? null : students[slot];
+    }
+
+    /*The name index is sorted, so every name with this prefix sits in one
+    range of it, starting at the prefix itself. Finding the start is
+    O(log n), then we walk until a name doesn't start with the prefix. */
+    public synchronized List<Student> findByNamePrefix(String prefix){
+        List<Student> found = new ArrayList<>();
+        for(Map.Entry<String, int[]> entry : nameIndex.tailMap(prefix, true).entrySet()){
+            if(!entry.getKey().startsWith(prefix))
+                break;
+            int[] slots = entry.getValue();
+            for(int i = 1; i <= slots[0]; i++)
+                found.add(students[slots[i]]);
+        }
+        return found;
+    }
+
+    //Students can share a name, so every name keeps a little list of slots: [count, slot, slot...]
+    private void addToNameIndex(String name, int slot){
+        int[] slots = nameIndex.get(name);
+        if(slots == null){
+            nameIndex.put(name, new int[]{1, slot});
+        } else {
+            if(slots[0] + 1 == slots.length){
+                slots = Arrays.copyOf(slots, slots.length * 2);
+                nameIndex.put(name, slots);
+            }
+            slots[++slots[0]] = slot;
+        }
+    }
+
 
 }
 
+/**
+ * A hash index from student number to slot, kept in two int arrays instead
+ * of a HashMap full of boxed entries. We only store the number's hash and
+ * check the real number on the Student itself, so two numbers with the
+ * same hash can't be mixed up. The table starts small and doubles when it
+ * gets half full, so a big classroom that stays empty doesn't pay for it.
+ */
+class StudentNumberIndex{
+    private static final int EMPTY = -1;
+    private static final int INITIAL_SIZE = 16;
+    //The biggest power of two an int array can have.
+    private static final int MAX_SIZE = 1 << 30;
+    private int[] hashes = new int[INITIAL_SIZE];
+    private int[] slots = emptySlots(INITIAL_SIZE);
+    private int mask = INITIAL_SIZE - 1;
+    private int count;
+
+    void add(String number, int slot){
+        if((count + 1) * 2L > slots.length)
+            grow();
+        insert(hash(number), slot);
+        count++;
+    }
+
+    /*Slots only go up as students are added, so the first student added
+    with this number has the smallest slot. Growing can change the order
+    along a probe chain, so we check the whole chain. */
+    int find(String number, Student[] students){
+        int hash = hash(number);
+        int first = EMPTY;
+        for(int i = hash & mask; slots[i] != EMPTY; i = (i + 1) & mask){
+            if(hashes[i] == hash && (first == EMPTY || slots[i] < first)
+                    && number.equals(students[slots[i]].getNumber()))
+                first = slots[i];
+        }
+        return first;
+    }
+
+    private void insert(int hash, int slot){
+        int i = hash & mask;
+        while(slots[i] != EMPTY)
+            i = (i + 1) & mask;
+        hashes[i] = hash;
+        slots[i] = slot;
+    }
+
+    private void grow(){
+        if(slots.length == MAX_SIZE){
+            //Past half full now, but one empty entry is all a probe needs to stop.
+            if(count + 1 < MAX_SIZE)
+                return;
+            throw new IllegalStateException("Student number index is full");
+        }
+        int[] oldHashes = hashes;
+        int[] oldSlots = slots;
+        hashes = new int[oldSlots.length * 2];
+        slots = emptySlots(oldSlots.length * 2);
+        mask = slots.length - 1;
+        for(int i = 0; i < oldSlots.length; i++)
+            if(oldSlots[i] != EMPTY)
+                insert(oldHashes[i], oldSlots[i]);
+    }
+
+    private static int[] emptySlots(int size){
+        int[] slots = new int[size];
+        Arrays.fill(slots, EMPTY);
+        return slots;
+    }
+
+    //String hashes of similar numbers are close together, so we spread them out.
+    private static int hash(String number){
+        int hash = number.hashCode() * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
+
+
 /**As you might've noticed; we have a createIterator method in our
  * aggregate object Classroom. Which returns the ClassroomIterator 
  * object defined below.
@@ -100,7 +298,7 @@ class ClassroomIterator implements Iterator<Student>{
     
     @Override
     public boolean hasNext() {
-        if(count<=students.length && students[count]!=null){
+        if(count<students.length && students[count]!=null){
             return true;
         } else return false;
     }
@@ -114,6 +312,356 @@ class ClassroomIterator implements Iterator<Student>{
 }
 
 
+/**
+ * A Spliterator is an iterator that can split itself in two, which is what
+ * parallel streams need. Ours covers a range of the Student array and
+ * splits it down the middle, so both halves know their exact size
+ * (SIZED and SUBSIZED).
+ */
+class ClassroomSpliterator implements Spliterator<Student>{
+    private final Student[] students;
+    private int from;
+    private final int to;
+
+    ClassroomSpliterator(Student[] students, int from, int to){
+        this.students = students;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Student> action) {
+        if(from >= to)
+            return false;
+        action.accept(students[from++]);
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super Student> action) {
+        for(int i = from; i < to; i++)
+            action.accept(students[i]);
+        from = to;
+    }
+
+    @Override
+    public Spliterator<Student> trySplit() {
+        int middle = (from + to) >>> 1;
+        if(middle <= from)
+            return null;
+        Spliterator<Student> firstHalf = new ClassroomSpliterator(students, from, middle);
+        from = middle;
+        return firstHalf;
+    }
+
+    @Override
+    public long estimateSize() {
+        return to - from;
+    }
+
+    @Override
+    public int characteristics() {
+        return SIZED | SUBSIZED | ORDERED | NONNULL;
+    }
+}
+
+
+/**
+ * A Classroom with tens of millions of students spends most of its heap on
+ * object headers: a Student, two Strings and two byte arrays per student.
+ * OffHeapClassroom keeps the same data as fixed width records in direct
+ * ByteBuffers instead, outside of the heap:
+ * 
+ *     [name length][name bytes, UTF-8][number length][number bytes, UTF-8]
+ * 
+ * Records live in pages of PAGE_RECORDS each, so we aren't limited by the
+ * 2GB a single ByteBuffer can hold. Pages are only allocated when needed.
+ * 
+ * Thanks to the iterator pattern, clients don't care. They still get an
+ * Iterator of Students from createIterator().
+ */
+class OffHeapClassroom{
+    static final int NAME_BYTES = 31;
+    static final int NUMBER_BYTES = 15;
+    static final int RECORD_BYTES = 1 + NAME_BYTES + 1 + NUMBER_BYTES;
+    static final int PAGE_RECORDS = 1 << 20;
+
+    private final ByteBuffer[] pages;
+    private final int capacity;
+    private int position;
+
+    public OffHeapClassroom(int capacity){
+        this.capacity = capacity;
+        pages = new ByteBuffer[(int) (((long) capacity + PAGE_RECORDS - 1) / PAGE_RECORDS)];
+        position = 0;
+    }
+
+    //Same as Classroom.addStudent, minus the Student object.
+    public void addStudent(String name, String number){
+        if(position==capacity){
+            System.err.println("Max number reached");
+            return;
+        }
+        byte[] nameBytes = encode(name, NAME_BYTES);
+        byte[] numberBytes = encode(number, NUMBER_BYTES);
+
+        ByteBuffer page = page(position);
+        int offset = offset(position);
+        page.put(offset, (byte) nameBytes.length);
+        page.put(offset + 1, nameBytes);
+        page.put(offset + 1 + NAME_BYTES, (byte) numberBytes.length);
+        page.put(offset + 2 + NAME_BYTES, numberBytes);
+        position++;
+    }
+
+    public int size(){
+        return position;
+    }
+
+    public Iterator<Student> createIterator(){
+        return new OffHeapClassroomIterator(this);
+    }
+
+    private static byte[] encode(String value, int maxBytes){
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if(bytes.length > maxBytes)
+            throw new IllegalArgumentException("\"" + value + "\" is longer than " + maxBytes + " bytes");
+        return bytes;
+    }
+
+    ByteBuffer page(int index){
+        int page = index / PAGE_RECORDS;
+        if(pages[page]==null){
+            int records = Math.min(PAGE_RECORDS, capacity - page * PAGE_RECORDS);
+            pages[page] = ByteBuffer.allocateDirect(records * RECORD_BYTES);
+        }
+        return pages[page];
+    }
+
+    static int offset(int index){
+        return (index % PAGE_RECORDS) * RECORD_BYTES;
+    }
+}
+
+/**
+ * A flyweight: one StudentView is pointed at record after record instead of
+ * creating a Student for each of them. Fields are only decoded when they're
+ * asked for, and setters write straight into the record.
+ */
+class StudentView extends Student{
+    private final OffHeapClassroom classroom;
+    private ByteBuffer page;
+    private int offset;
+
+    StudentView(OffHeapClassroom classroom){
+        this.classroom = classroom;
+    }
+
+    void moveTo(int index){
+        page = classroom.page(index);
+        offset = OffHeapClassroom.offset(index);
+    }
+
+    @Override
+    public String getName() {
+        return read(offset, page.get(offset));
+    }
+
+    @Override
+    public String getNumber() {
+        return read(offset + 1 + OffHeapClassroom.NAME_BYTES, page.get(offset + 1 + OffHeapClassroom.NAME_BYTES));
+    }
+
+    @Override
+    public void setName(String name) {
+        write(offset, name, OffHeapClassroom.NAME_BYTES);
+    }
+
+    @Override
+    public void setNumber(String number) {
+        write(offset + 1 + OffHeapClassroom.NAME_BYTES, number, OffHeapClassroom.NUMBER_BYTES);
+    }
+
+    private String read(int at, int length){
+        byte[] bytes = new byte[length];
+        page.get(at + 1, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void write(int at, String value, int maxBytes){
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if(bytes.length > maxBytes)
+            throw new IllegalArgumentException("\"" + value + "\" is longer than " + maxBytes + " bytes");
+        page.put(at, (byte) bytes.length);
+        page.put(at + 1, bytes);
+    }
+}
+
+/**
+ * The iterator for OffHeapClassroom. Every next() returns the SAME
+ * StudentView, moved to the next record. If you want to keep a student
+ * around, copy its name and number before calling next() again.
+ */
+class OffHeapClassroomIterator implements Iterator<Student>{
+    private final OffHeapClassroom classroom;
+    private final StudentView view;
+    private int count;
+
+    public OffHeapClassroomIterator(OffHeapClassroom classroom){
+        this.classroom = classroom;
+        view = new StudentView(classroom);
+        count = 0;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return count < classroom.size();
+    }
+
+    @Override
+    public Student next() {
+        if(!hasNext())
+            throw new NoSuchElementException();
+        view.moveTo(count);
+        count++;
+        return view;
+    }
+}
+
+
+/**
+ * Classroom has a fixed size and builds a Student, with two setter calls,
+ * for every student added. GrowableClassroom keeps a name array next to a
+ * long array of student numbers, so a number costs 8 bytes instead of a
+ * String. Both arrays grow by half when they're full, so adding is
+ * amortized O(1). The addAll methods make room once and then copy whole
+ * arrays at a time.
+ * 
+ * Numbers are kept as longs, so leading zeros would get lost. That's why
+ * the classroom knows how many digits a number has and pads it back when
+ * it hands out a Student.
+ */
+class GrowableClassroom{
+    private String[] names;
+    private long[] numbers;
+    private int size;
+    private final int numberDigits;
+
+    public GrowableClassroom(int initialCapacity, int numberDigits){
+        names = new String[Math.max(initialCapacity, 4)];
+        numbers = new long[names.length];
+        this.numberDigits = numberDigits;
+    }
+
+    public void addStudent(String name, long number){
+        if(size==names.length)
+            grow(size + 1);
+        names[size] = name;
+        numbers[size] = number;
+        size++;
+    }
+
+    //For callers that still have numbers as text, like Classroom's callers.
+    public void addStudent(String name, String number){
+        addStudent(name, Long.parseLong(number));
+    }
+
+    /**Adds count students from the given arrays, starting at from. Nothing
+     * is checked per student: the arrays are copied as they are. */
+    public void addAll(String[] newNames, long[] newNumbers, int from, int count){
+        //Written so that from + count can't overflow.
+        if(from < 0 || count < 0 || from > newNames.length - count || from > newNumbers.length - count)
+            throw new IndexOutOfBoundsException("Can't copy " + count + " students from " + from);
+        if(count > Integer.MAX_VALUE - 8 - size)
+            throw new OutOfMemoryError("Classroom can't hold " + ((long) size + count) + " students");
+        ensureCapacity(size + count);
+        System.arraycopy(newNames, from, names, size, count);
+        System.arraycopy(newNumbers, from, numbers, size, count);
+        size += count;
+    }
+
+    public void addAll(String[] newNames, long[] newNumbers){
+        if(newNames.length != newNumbers.length)
+            throw new IllegalArgumentException("Got " + newNames.length + " names but " + newNumbers.length + " numbers");
+        addAll(newNames, newNumbers, 0, newNames.length);
+    }
+
+    //Streams that know their size make room for everyone up front.
+    public void addAll(Stream<? extends Student> students){
+        Spliterator<? extends Student> spliterator = students.spliterator();
+        long expected = spliterator.getExactSizeIfKnown();
+        if(expected > 0)
+            ensureCapacity((int) Math.min(Integer.MAX_VALUE - 8, size + expected));
+        spliterator.forEachRemaining(student -> addStudent(student.getName(), student.getNumber()));
+    }
+
+    public void ensureCapacity(int capacity){
+        if(capacity > names.length)
+            grow(capacity);
+    }
+
+    private void grow(int minCapacity){
+        int capacity = (int) Math.min(Integer.MAX_VALUE - 8, Math.max((long) minCapacity, names.length + (names.length >> 1)));
+        if(capacity < minCapacity)
+            throw new OutOfMemoryError("Classroom can't hold " + minCapacity + " students");
+        names = Arrays.copyOf(names, capacity);
+        numbers = Arrays.copyOf(numbers, capacity);
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public String getName(int index){
+        Objects.checkIndex(index, size);
+        return names[index];
+    }
+
+    public long getNumber(int index){
+        Objects.checkIndex(index, size);
+        return numbers[index];
+    }
+
+    //Students are only made when someone iterates, and only one at a time.
+    public Iterator<Student> createIterator(){
+        return new Iterator<Student>(){
+            private int count;
+
+            @Override
+            public boolean hasNext() {
+                return count < size;
+            }
+
+            @Override
+            public Student next() {
+                if(!hasNext())
+                    throw new NoSuchElementException();
+                Student student = new Student();
+                student.setName(names[count]);
+                student.setNumber(formatNumber(numbers[count]));
+                count++;
+                return student;
+            }
+        };
+    }
+
+    //Pads the digits with zeros, a minus sign stays in front: -42 becomes "-0042".
+    String formatNumber(long number){
+        String digits = Long.toString(number);
+        int sign = number < 0 ? 1 : 0;
+        int digitCount = digits.length() - sign;
+        if(digitCount >= numberDigits)
+            return digits;
+        char[] padded = new char[sign + numberDigits];
+        if(sign == 1)
+            padded[0] = '-';
+        Arrays.fill(padded, sign, sign + numberDigits - digitCount, '0');
+        digits.getChars(sign, digits.length(), padded, sign + numberDigits - digitCount);
+        return new String(padded);
+    }
+}
+
+
 //Let's try out our implementation. 
 public class IteratorPattern{
     public static void main(String[] args) {
@@ -128,11 +676,282 @@ public class IteratorPattern{
             System.out.println(st.getName() + " " + st.getNumber());
         }
 
+        //Or with streams, which can also run in parallel.
+        long count = classroom.parallelStream().filter(st -> st.getName().startsWith("J")).count();
+        System.out.println(count + " student(s) whose name starts with J");
+
+        //No need to walk the whole classroom to find someone.
+        System.out.println("0234 is " + classroom.findByNumber("0234").getName());
+        for(Student st : classroom.findByNamePrefix("M"))
+            System.out.println("Starts with M: " + st.getName());
+
+        //A full classroom used to throw here, hasNext() looked one slot too far.
+        Classroom fullClassroom = new Classroom(1);
+        fullClassroom.addStudent("Chidi", "0001");
+        Iterator<Student> fullIterator = fullClassroom.createIterator();
+        while(fullIterator.hasNext()){
+            Student st = fullIterator.next();
+            System.out.println(st.getName() + " " + st.getNumber());
+        }
+
+        //This one never gets full, and it can take a whole bunch of students at once.
+        GrowableClassroom growableClassroom = new GrowableClassroom(2, 4);
+        growableClassroom.addStudent("Jason", "0042");
+        growableClassroom.addAll(new String[]{"Derek", "Mindy"}, new long[]{17, 9001});
+
+        Iterator<Student> growableIterator = growableClassroom.createIterator();
+        while(growableIterator.hasNext()){
+            Student st = growableIterator.next();
+            System.out.println(st.getName() + " " + st.getNumber());
+        }
+
+        //The off heap classroom is used exactly the same way.
+        OffHeapClassroom offHeapClassroom = new OffHeapClassroom(4);
+        offHeapClassroom.addStudent("Eleanor", "1902");
+        offHeapClassroom.addStudent("Tahani", "7731");
+
+        Iterator<Student> offHeapIterator = offHeapClassroom.createIterator();
+        while(offHeapIterator.hasNext()){
+            Student st = offHeapIterator.next();
+            System.out.println(st.getName() + " " + st.getNumber());
+        }
+
 
         
     }
 }
 
-    
 
+/**
+ * Loads 50 million students into a GrowableClassroom, a million at a time
+ * through addAll into a pre-sized classroom and then one by one through
+ * addStudent, and compares with
+ * the old Classroom at a tenth of the size. Run it with a bigger heap,
+ * "java -Xmx4g ClassroomLoadBenchmark", or pass a smaller count.
+ */
+class ClassroomLoadBenchmark{
+    public static void main(String[] args) {
+        int studentCount = args.length > 0 ? Integer.parseInt(args[0]) : 50_000_000;
+        int chunk = 1_000_000;
+
+        //A few hundred names are plenty, we're measuring the roster here, not the Strings.
+        String[] names = new String[chunk];
+        long[] numbers = new long[chunk];
+        for(int i = 0; i < chunk; i++){
+            names[i] = "Student" + (i % 512);
+            numbers[i] = i;
+        }
+
+        for(int round = 0; round < 3; round++){
+            long start = System.nanoTime();
+            GrowableClassroom bulk = new GrowableClassroom(16, 8);
+            //A bulk load usually knows how big it is, so it can skip growing altogether.
+            bulk.ensureCapacity(studentCount);
+            for(int loaded = 0; loaded < studentCount; loaded += chunk)
+                bulk.addAll(names, numbers, 0, Math.min(chunk, studentCount - loaded));
+            long bulkNanos = System.nanoTime() - start;
+            bulk = null;
+
+            start = System.nanoTime();
+            GrowableClassroom single = new GrowableClassroom(16, 8);
+            for(int i = 0; i < studentCount; i++)
+                single.addStudent(names[i % chunk], numbers[i % chunk]);
+            long singleNanos = System.nanoTime() - start;
+            single = null;
 
+            int oldCount = studentCount / 10;
+            String[] numberTexts = new String[chunk];
+            for(int i = 0; i < chunk; i++)
+                numberTexts[i] = Long.toString(numbers[i]);
+            start = System.nanoTime();
+            Classroom classroom = new Classroom(oldCount);
+            for(int i = 0; i < oldCount; i++)
+                classroom.addStudent(names[i % chunk], numberTexts[i % chunk]);
+            long oldNanos = System.nanoTime() - start;
+            classroom = null;
+
+            System.out.printf("round %d: addAll %.1f M/s, addStudent %.1f M/s, Classroom %.1f M/s%n", round,
+                    studentCount * 1e3 / bulkNanos, studentCount * 1e3 / singleNanos, oldCount * 1e3 / oldNanos);
+        }
+    }
+}
+
+
+/**
+ * A roster wide report (how many students per first letter, and the sum of
+ * all student numbers) over one big Classroom, first with a sequential
+ * stream and then with a parallel one on the fork-join pool.
+ * Run it with "java ClassroomStreamBenchmark".
+ */
+class ClassroomStreamBenchmark{
+    public static void main(String[] args) {
+        int studentCount = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+        Classroom classroom = new Classroom(studentCount);
+        Random random = new Random(42);
+        for(int i = 0; i < studentCount; i++)
+            classroom.addStudent((char) ('A' + random.nextInt(26)) + "student", Integer.toString(random.nextInt(10_000)));
+
+        for(int round = 0; round < 5; round++){
+            long start = System.nanoTime();
+            Map<Character, Long> sequential = report(classroom.stream());
+            long sequentialNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            Map<Character, Long> parallel = report(classroom.parallelStream());
+            long parallelNanos = System.nanoTime() - start;
+
+            if(!sequential.equals(parallel))
+                throw new IllegalStateException("Parallel report differs from the sequential one");
+            System.out.printf("round %d: sequential %d ms, parallel %d ms on %d cores%n", round,
+                    sequentialNanos / 1_000_000, parallelNanos / 1_000_000, Runtime.getRuntime().availableProcessors());
+        }
+    }
+
+    //Students per first letter, plus the sum of all numbers under '#'.
+    static Map<Character, Long> report(Stream<Student> students){
+        long[] counts = students.collect(() -> new long[27], (totals, st) -> {
+            totals[st.getName().charAt(0) - 'A']++;
+            totals[26] += Long.parseLong(st.getNumber());
+        }, (left, right) -> {
+            for(int i = 0; i < left.length; i++)
+                left[i] += right[i];
+        });
+        Map<Character, Long> report = new TreeMap<>();
+        for(int i = 0; i < 26; i++)
+            report.put((char) ('A' + i), counts[i]);
+        report.put('#', counts[26]);
+        return report;
+    }
+}
+
+
+/**
+ * Point lookups and prefix queries on a 10 million student Classroom, with
+ * the indexes and with a full scan through the iterator.
+ * Run it with "java -Xmx4g ClassroomIndexBenchmark".
+ */
+class ClassroomIndexBenchmark{
+    public static void main(String[] args) {
+        int studentCount = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        Classroom classroom = new Classroom(studentCount);
+        Random random = new Random(42);
+        long start = System.nanoTime();
+        for(int i = 0; i < studentCount; i++)
+            classroom.addStudent(randomName(random), Integer.toString(i));
+        System.out.printf("loaded %,d students with indexes in %d ms%n", studentCount, (System.nanoTime() - start) / 1_000_000);
+
+        int lookups = 1_000_000;
+        start = System.nanoTime();
+        long found = 0;
+        for(int i = 0; i < lookups; i++)
+            found += classroom.findByNumber(Integer.toString(random.nextInt(studentCount))) != null ? 1 : 0;
+        System.out.printf("findByNumber: %.0f ns per lookup (%d found)%n", (System.nanoTime() - start) / (double) lookups, found);
+
+        start = System.nanoTime();
+        long matches = 0;
+        for(int i = 0; i < 1000; i++)
+            matches += classroom.findByNamePrefix(randomName(random).substring(0, 4)).size();
+        System.out.printf("findByNamePrefix: %.0f us per query (%d matches)%n", (System.nanoTime() - start) / 1000 / 1e3, matches);
+
+        String wanted = Integer.toString(studentCount - 1);
+        start = System.nanoTime();
+        Iterator<Student> iterator = classroom.createIterator();
+        while(iterator.hasNext()){
+            if(iterator.next().getNumber().equals(wanted))
+                break;
+        }
+        System.out.printf("one full scan through the iterator: %d ms%n", (System.nanoTime() - start) / 1_000_000);
+    }
+
+    static String randomName(Random random){
+        char[] name = new char[8];
+        for(int i = 0; i < name.length; i++)
+            name[i] = (char) ('a' + random.nextInt(26));
+        return new String(name);
+    }
+}
+
+
+/**
+ * Writers keep adding students while readers keep iterating, in both modes.
+ * Snapshot readers must always see complete students, exactly as many as
+ * the classroom had when they started, and every writer's students in the
+ * order that writer added them. Fail-fast readers must either see a
+ * complete classroom or throw ConcurrentModificationException.
+ * Run it with "java ClassroomConcurrencyStressTest".
+ */
+class ClassroomConcurrencyStressTest{
+    public static void main(String[] args) throws InterruptedException {
+        int writerCount = 4;
+        int studentsPerWriter = 250_000;
+        int readerCount = 8;
+        Classroom classroom = new Classroom(writerCount * studentsPerWriter);
+        java.util.concurrent.atomic.AtomicInteger writersLeft = new java.util.concurrent.atomic.AtomicInteger(writerCount);
+        java.util.concurrent.atomic.AtomicLong snapshotReads = new java.util.concurrent.atomic.AtomicLong();
+        java.util.concurrent.atomic.AtomicLong failFastReads = new java.util.concurrent.atomic.AtomicLong();
+        java.util.concurrent.atomic.AtomicLong failFastThrows = new java.util.concurrent.atomic.AtomicLong();
+        java.util.concurrent.ConcurrentLinkedQueue<Throwable> failures = new java.util.concurrent.ConcurrentLinkedQueue<>();
+
+        List<Thread> threads = new ArrayList<>();
+        for(int w = 0; w < writerCount; w++){
+            int writer = w;
+            threads.add(new Thread(() -> {
+                for(int i = 0; i < studentsPerWriter; i++)
+                    classroom.addStudent("writer" + writer, Integer.toString(i));
+                writersLeft.decrementAndGet();
+            }));
+        }
+        for(int r = 0; r < readerCount; r++){
+            boolean snapshot = r % 2 == 0;
+            threads.add(new Thread(() -> {
+                try {
+                    do {
+                        if(snapshot){
+                            checkSnapshot(classroom.createSnapshotIterator(), writerCount);
+                            snapshotReads.incrementAndGet();
+                        } else {
+                            try {
+                                checkSnapshot(classroom.createFailFastIterator(), writerCount);
+                                failFastReads.incrementAndGet();
+                            } catch(ConcurrentModificationException e){
+                                failFastThrows.incrementAndGet();
+                            }
+                        }
+                    } while(writersLeft.get() > 0);
+                } catch(Throwable e){
+                    failures.add(e);
+                }
+            }));
+        }
+        for(Thread thread : threads)
+            thread.start();
+        for(Thread thread : threads)
+            thread.join();
+
+        if(!failures.isEmpty())
+            throw new IllegalStateException("Reader saw a broken classroom", failures.peek());
+        int total = checkSnapshot(classroom.createSnapshotIterator(), writerCount);
+        if(total != writerCount * studentsPerWriter)
+            throw new IllegalStateException("Expected " + writerCount * studentsPerWriter + " students, found " + total);
+        System.out.printf("%,d students, %d snapshot reads, %d complete fail-fast reads, %d fail-fast reads stopped%n",
+                total, snapshotReads.get(), failFastReads.get(), failFastThrows.get());
+    }
+
+    //Every student must be complete, and each writer's numbers must come in order.
+    static int checkSnapshot(Iterator<Student> iterator, int writerCount){
+        int[] nextNumber = new int[writerCount];
+        int count = 0;
+        while(iterator.hasNext()){
+            Student st = iterator.next();
+            if(st == null || st.getName() == null || st.getNumber() == null)
+                throw new IllegalStateException("Half written student at " + count);
+            int writer = st.getName().charAt(st.getName().length() - 1) - '0';
+            int number = Integer.parseInt(st.getNumber());
+            if(number != nextNumber[writer])
+                throw new IllegalStateException("Writer " + writer + " expected " + nextNumber[writer] + " but got " + number);
+            nextNumber[writer]++;
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,91 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+The State, Template Method and Proxy examples all time something: how long
+a vending machine stays in a state, how long a beverage step takes, how long
+a remote call takes. They share this one histogram.
+
+It is an HDR style histogram: values below 2^SUB_BITS get a bucket each, and
+above that every power of two is split into 2^(SUB_BITS - 1) linear
+sub-buckets. That keeps the relative error around 3% from nanoseconds up
+to hours, in a couple of thousand counters. Recording is one atomic increment,
+so many threads can record at once.
+*/
+class LatencyHistogram {
+    private static final int SUB_BITS = 6;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF_COUNT = SUB_COUNT / 2;
+    private static final int BUCKET_COUNT = SUB_COUNT + (63 - SUB_BITS) * HALF_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+    private final LongAdder total = new LongAdder();
+
+    //Negative values count as 0.
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts.incrementAndGet(indexOf(value));
+        total.add(value);
+        max.accumulate(value);
+    }
+
+    static int indexOf(long value) {
+        int exponent = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        if (exponent <= 0)
+            return (int) value;
+        return SUB_COUNT + (exponent - 1) * HALF_COUNT + (int) (value >>> exponent) - HALF_COUNT;
+    }
+
+    //The highest value that falls in the bucket.
+    static long valueOf(int index) {
+        if (index < SUB_COUNT)
+            return index;
+        int exponent = (index - SUB_COUNT) / HALF_COUNT + 1;
+        long sub = (index - SUB_COUNT) % HALF_COUNT + HALF_COUNT;
+        return ((sub + 1) << exponent) - 1;
+    }
+
+    public long count() {
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            total += counts.get(i);
+        return total;
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public double mean() {
+        long count = count();
+        return count == 0 ? 0 : (double) total.sum() / count;
+    }
+
+    //percent goes from 0 to 100. The highest value of the bucket it falls in, 0 when nothing was recorded.
+    public long percentile(double percent) {
+        long[] snapshot = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            total += snapshot[i] = counts.get(i);
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(total * percent / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return Math.min(valueOf(i), max());
+        }
+        return max();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            counts.set(i, 0);
+        total.reset();
+        max.reset();
+    }
+}
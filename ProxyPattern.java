@@ -1,7 +1,56 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.rmi.Naming;
+import java.rmi.NoSuchObjectException;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 
 /*
 "The Proxy Pattern provides a surrogate or placeholder for another object to control
@@ -37,23 +86,1340 @@ interface Service extends Remote {
  * An actual client object. It must extend Unicast object and implement our
  * Service interface.
  */
-class MyService extends UnicastRemoteObject implements Service {
+class MyService extends UnicastRemoteObject implements BatchService, InvalidatingService {
     private static final long serialVersionUID = 1L;
 
+    private volatile String name;
+    private volatile int number;
+    private volatile double value;
+    private final transient List<Subscriber> listeners = new CopyOnWriteArrayList<>();
+
+    // Delivers invalidations, so a slow client never holds up a setter. Idle threads go away after a minute.
+    private static final ExecutorService INVALIDATION_SENDERS = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "invalidation-sender");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     public MyService() throws RemoteException {
+        this(null, 0, 0);
+    }
+
+    public MyService(String name, int number, double value) throws RemoteException {
+        this.name = name;
+        this.number = number;
+        this.value = value;
+    }
+
+    public String getName() throws RemoteException {
+        return name;
+    }
+
+    public int getNumber() throws RemoteException {
+        return number;
+    }
+
+    public double getValue() throws RemoteException {
+        return value;
+    }
+
+    /*
+     * The setters are for the server side only, they're not in the Service
+     * interface. Every change tells the clients that cache the old value.
+     */
+    public void setName(String name) {
+        this.name = name;
+        invalidate(GET_NAME);
+    }
+
+    public void setNumber(int number) {
+        this.number = number;
+        invalidate(GET_NUMBER);
+    }
+
+    public void setValue(double value) {
+        this.value = value;
+        invalidate(GET_VALUE);
+    }
+
+    public void addInvalidationListener(CacheInvalidationListener listener) throws RemoteException {
+        listeners.add(new Subscriber(listener));
+    }
+
+    public void removeInvalidationListener(CacheInvalidationListener listener) throws RemoteException {
+        listeners.removeIf(subscriber -> subscriber.listener.equals(listener));
+    }
+
+    private void invalidate(byte method) {
+        for (Subscriber subscriber : listeners)
+            subscriber.changed(method);
+    }
+
+    /*
+     * Telling a client is a remote call, and a client can be slow or stuck. So
+     * the setters only mark what changed, and a sender thread makes the calls.
+     * Each client has at most one sender at a time. Changes that come in while
+     * it's busy are kept as one bit per method, so a slow client gets each
+     * change once and nothing piles up for it.
+     */
+    private final class Subscriber implements Runnable {
+        final CacheInvalidationListener listener;
+        private int changedMethods;
+        private boolean sending;
+
+        Subscriber(CacheInvalidationListener listener) {
+            this.listener = listener;
+        }
+
+        synchronized void changed(byte method) {
+            changedMethods |= 1 << method;
+            if (!sending) {
+                sending = true;
+                INVALIDATION_SENDERS.execute(this);
+            }
+        }
+
+        public void run() {
+            while (true) {
+                int methods;
+                synchronized (this) {
+                    methods = changedMethods;
+                    changedMethods = 0;
+                    if (methods == 0) {
+                        sending = false;
+                        return;
+                    }
+                }
+                for (byte method = 0; method < Integer.SIZE; method++) {
+                    if ((methods & (1 << method)) == 0)
+                        continue;
+                    try {
+                        listener.invalidated(method);
+                    } catch (RemoteException e) {
+                        // A client we can't reach anymore won't hear from us again.
+                        listeners.remove(this);
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Runs the calls one after another on this side of the line. A call that
+     * fails puts its exception in its slot, so the others still get their answers.
+     */
+    public Object[] callBatch(byte[] methods) throws RemoteException {
+        Object[] results = new Object[methods.length];
+        for (int i = 0; i < methods.length; i++) {
+            try {
+                switch (methods[i]) {
+                    case GET_NAME:
+                        results[i] = getName();
+                        break;
+                    case GET_NUMBER:
+                        results[i] = getNumber();
+                        break;
+                    case GET_VALUE:
+                        results[i] = getValue();
+                        break;
+                    default:
+                        results[i] = new IllegalArgumentException("Unknown method " + methods[i]);
+                }
+            } catch (Exception e) {
+                results[i] = e;
+            }
+        }
+        return results;
+    }
+}
+
+/*
+ * Every call on a stub is a round trip over the network. If a client wants the
+ * name, number and value a thousand times, it pays for three thousand round
+ * trips, and most of that time is spent waiting for the wire, not working.
+ *
+ * So the remote object gets one more method: it takes a whole list of calls and
+ * sends back all the answers at once. Method ids are bytes to keep the request small.
+ */
+interface BatchService extends Service {
+    byte GET_NAME = 0;
+    byte GET_NUMBER = 1;
+    byte GET_VALUE = 2;
+
+    // Results come back in the same order, either the value or the exception
+    // that call threw.
+    public Object[] callBatch(byte[] methods) throws RemoteException;
+}
+
+/*
+ * A proxy for the proxy. It looks like a Service, but the calls made through it
+ * wait in a queue for a moment, and the queue is sent as one callBatch() request.
+ *
+ * The async methods return right away with a future, so a single thread can
+ * queue thousands of calls and have them leave in a handful of batches. The
+ * plain Service methods queue a call and wait for it, which only batches when
+ * many threads are calling at once.
+ *
+ * Several sender threads take turns, so while one batch is on the wire the next
+ * one is already being collected and sent. That's the "pipelined" part.
+ */
+class BatchingServiceProxy implements Service, AutoCloseable {
+    private final BatchService remote;
+    private final int maxBatch;
+    private final long lingerNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition callsWaiting = lock.newCondition();
+    private final List<PendingCall<?>> pending = new ArrayList<>();
+    private final Thread[] senders;
+    private boolean flushRequested;
+    private boolean closed;
+
+    /*
+     * maxBatch: most calls in one request. linger: how long a sender waits for
+     * more calls before sending a batch that isn't full. inFlight: how many
+     * batches may be on the wire at once.
+     */
+    public BatchingServiceProxy(BatchService remote, int maxBatch, long linger, TimeUnit unit, int inFlight) {
+        if (maxBatch <= 0)
+            throw new IllegalArgumentException("A batch needs room for at least one call: " + maxBatch);
+        if (linger < 0)
+            throw new IllegalArgumentException("linger must not be negative: " + linger);
+        if (inFlight <= 0)
+            throw new IllegalArgumentException("At least one batch must be allowed in flight: " + inFlight);
+        this.remote = remote;
+        this.maxBatch = maxBatch;
+        this.lingerNanos = unit.toNanos(linger);
+        this.senders = new Thread[inFlight];
+        for (int i = 0; i < inFlight; i++) {
+            senders[i] = new Thread(this::sendBatches, "batch-sender-" + i);
+            senders[i].setDaemon(true);
+            senders[i].start();
+        }
+    }
+
+    public BatchingServiceProxy(BatchService remote) {
+        this(remote, 256, 200, TimeUnit.MICROSECONDS, 2);
+    }
+
+    public CompletableFuture<String> getNameAsync() {
+        return enqueue(BatchService.GET_NAME);
+    }
+
+    public CompletableFuture<Integer> getNumberAsync() {
+        return enqueue(BatchService.GET_NUMBER);
+    }
+
+    public CompletableFuture<Double> getValueAsync() {
+        return enqueue(BatchService.GET_VALUE);
+    }
+
+    public String getName() throws RemoteException {
+        return await(getNameAsync());
+    }
+
+    public int getNumber() throws RemoteException {
+        return await(getNumberAsync());
+    }
+
+    public double getValue() throws RemoteException {
+        return await(getValueAsync());
+    }
+
+    // Sends what's queued without waiting for the linger time.
+    public void flush() {
+        lock.lock();
+        try {
+            if (!pending.isEmpty()) {
+                flushRequested = true;
+                callsWaiting.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Queued calls are still sent, new calls fail.
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            callsWaiting.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Thread sender : senders) {
+            try {
+                sender.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private <T> CompletableFuture<T> enqueue(byte method) {
+        PendingCall<T> call = new PendingCall<>(method);
+        lock.lock();
+        try {
+            if (closed) {
+                call.future.completeExceptionally(new RemoteException("Proxy is closed"));
+                return call.future;
+            }
+            pending.add(call);
+            // The first call wakes a sender to start the linger clock, a full batch wakes it to send.
+            if (pending.size() == 1 || pending.size() >= maxBatch)
+                callsWaiting.signal();
+        } finally {
+            lock.unlock();
+        }
+        return call.future;
+    }
+
+    private void sendBatches() {
+        List<PendingCall<?>> batch;
+        while ((batch = nextBatch()) != null) {
+            byte[] methods = new byte[batch.size()];
+            for (int i = 0; i < methods.length; i++)
+                methods[i] = batch.get(i).method;
+            try {
+                Object[] results = remote.callBatch(methods);
+                for (int i = 0; i < methods.length; i++)
+                    batch.get(i).complete(results[i]);
+            } catch (Exception e) {
+                // The whole request failed, so every call in it did.
+                for (PendingCall<?> call : batch)
+                    call.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    // Blocks until there's a full batch, the linger time ran out, or flush() was called. Null once closed and empty.
+    private List<PendingCall<?>> nextBatch() {
+        lock.lock();
+        try {
+            // Another sender may take the calls while we linger, then we start over.
+            do {
+                while (pending.isEmpty()) {
+                    if (closed)
+                        return null;
+                    callsWaiting.awaitUninterruptibly();
+                }
+                long left = lingerNanos;
+                while (pending.size() < maxBatch && !flushRequested && !closed && left > 0)
+                    left = callsWaiting.awaitNanos(left);
+            } while (pending.isEmpty());
+            int size = Math.min(maxBatch, pending.size());
+            List<PendingCall<?>> batch = new ArrayList<>(pending.subList(0, size));
+            pending.subList(0, size).clear();
+            if (pending.isEmpty())
+                flushRequested = false;
+            else
+                callsWaiting.signal();
+            return batch;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws RemoteException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RemoteException)
+                throw (RemoteException) e.getCause();
+            throw new RemoteException("Batched call failed", e.getCause());
+        }
+    }
+
+    private static final class PendingCall<T> {
+        final byte method;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        PendingCall(byte method) {
+            this.method = method;
+        }
+
+        @SuppressWarnings("unchecked")
+        void complete(Object result) {
+            if (result instanceof Throwable)
+                future.completeExceptionally((Throwable) result);
+            else
+                future.complete((T) result);
+        }
+    }
+}
+
+/*
+ * Most of the time the answers of a remote object don't change between two
+ * calls, so asking again over the network is a waste. A caching proxy keeps
+ * the answers for a while and only asks when it doesn't have a fresh one.
+ *
+ * Keeping it "for a while" can hand out stale answers, so a service that knows
+ * when it changes can also tell its clients right away. The clients register a
+ * listener, which is a remote object itself: the server calls back the client.
+ */
+interface CacheInvalidationListener extends Remote {
+    public void invalidated(byte method) throws RemoteException;
+}
+
+interface InvalidatingService extends Service {
+    public void addInvalidationListener(CacheInvalidationListener listener) throws RemoteException;
+
+    public void removeInvalidationListener(CacheInvalidationListener listener) throws RemoteException;
+}
 
+/*
+ * One cache can serve many remote services, the size limit is for all of them
+ * together. The least recently used answer goes first when it's full.
+ *
+ * Every method has its own time to live, a name may stay good for minutes
+ * while a value only for a second.
+ *
+ * When many threads miss the same answer at once, only the first one asks the
+ * remote object, the others wait for its answer. Otherwise a popular answer
+ * expiring would send a crowd of identical calls down the line.
+ */
+class ServiceCache {
+    private final int maxEntries;
+    private final long[] ttlNanos = new long[3];
+    private final Map<Long, Entry> entries;
+    private final AtomicInteger nextServiceId = new AtomicInteger();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder collapsed = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LatencyHistogram loadLatency = new LatencyHistogram();
+
+    public ServiceCache(int maxEntries, long ttl, TimeUnit unit) {
+        this.maxEntries = maxEntries;
+        Arrays.fill(ttlNanos, unit.toNanos(ttl));
+        this.entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                if (size() <= ServiceCache.this.maxEntries)
+                    return false;
+                evictions.increment();
+                return true;
+            }
+        };
+    }
+
+    // Overrides the time to live of one method, like BatchService.GET_VALUE.
+    public ServiceCache ttl(byte method, long ttl, TimeUnit unit) {
+        if (method < 0 || method >= ttlNanos.length)
+            throw new IllegalArgumentException("Unknown method " + method);
+        ttlNanos[method] = unit.toNanos(ttl);
+        return this;
+    }
+
+    // If the service can push invalidations, the proxy subscribes to them. Close the proxy to unsubscribe.
+    public CachingService cached(Service remote) throws RemoteException {
+        return new CachingService(this, remote, nextServiceId.getAndIncrement());
+    }
+
+    public void invalidate(int serviceId, byte method) {
+        synchronized (entries) {
+            if (entries.remove(key(serviceId, method)) != null)
+                invalidations.increment();
+        }
+    }
+
+    public Stats stats() {
+        int size;
+        synchronized (entries) {
+            size = entries.size();
+        }
+        return new Stats(size, hits.sum(), misses.sum(), collapsed.sum(), expirations.sum(), evictions.sum(),
+            invalidations.sum(), loadLatency.percentile(50), loadLatency.percentile(99));
+    }
+
+    interface RemoteCall {
+        Object call() throws RemoteException;
+    }
+
+    Object get(int serviceId, byte method, RemoteCall call) throws RemoteException {
+        long key = key(serviceId, method);
+        Entry entry;
+        boolean mine = false;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry != null && entry.expired(System.nanoTime())) {
+                entries.remove(key);
+                expirations.increment();
+                entry = null;
+            }
+            if (entry == null) {
+                entry = new Entry();
+                entries.put(key, entry);
+                mine = true;
+            }
+        }
+
+        if (!mine) {
+            if (entry.answer.isDone())
+                hits.increment();
+            else
+                collapsed.increment();
+            return await(entry.answer);
+        }
+
+        misses.increment();
+        long start = System.nanoTime();
+        try {
+            Object answer = call.call();
+            entry.expiresAt = System.nanoTime() + ttlNanos[method];
+            entry.answer.complete(answer);
+            return answer;
+        } catch (Throwable failure) {
+            // Failures aren't cached, the next call tries again. Errors too,
+            // or the callers waiting on this entry would wait forever.
+            synchronized (entries) {
+                entries.remove(key, entry);
+            }
+            entry.answer.completeExceptionally(failure);
+            throw failure;
+        } finally {
+            loadLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    private static long key(int serviceId, byte method) {
+        return ((long) serviceId << 8) | method;
+    }
+
+    private static Object await(CompletableFuture<Object> answer) throws RemoteException {
+        try {
+            return answer.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RemoteException)
+                throw (RemoteException) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw (RuntimeException) e.getCause();
+        }
+    }
+
+    // An answer, or the promise of one while the first caller is still asking for it.
+    private static final class Entry {
+        final CompletableFuture<Object> answer = new CompletableFuture<>();
+        volatile long expiresAt;
+
+        boolean expired(long now) {
+            return answer.isDone() && now - expiresAt >= 0;
+        }
+    }
+
+    static final class Stats {
+        final int size;
+        final long hits, misses, collapsed, expirations, evictions, invalidations;
+        final long loadP50Nanos, loadP99Nanos;
+
+        Stats(int size, long hits, long misses, long collapsed, long expirations, long evictions, long invalidations,
+                long loadP50Nanos, long loadP99Nanos) {
+            this.size = size;
+            this.hits = hits;
+            this.misses = misses;
+            this.collapsed = collapsed;
+            this.expirations = expirations;
+            this.evictions = evictions;
+            this.invalidations = invalidations;
+            this.loadP50Nanos = loadP50Nanos;
+            this.loadP99Nanos = loadP99Nanos;
+        }
+
+        public String toString() {
+            return String.format("size %d, hits %d, misses %d, collapsed %d, expired %d, evicted %d, invalidated %d, "
+                + "remote call p50 %.1f us, p99 %.1f us", size, hits, misses, collapsed, expirations, evictions,
+                invalidations, loadP50Nanos / 1e3, loadP99Nanos / 1e3);
+        }
+    }
+}
+
+// The proxy itself just tells the cache which remote call to make on a miss.
+class CachingService implements Service, CacheInvalidationListener, AutoCloseable {
+    private final ServiceCache cache;
+    private final Service remote;
+    private final int serviceId;
+    private final boolean subscribed;
+
+    CachingService(ServiceCache cache, Service remote, int serviceId) throws RemoteException {
+        this.cache = cache;
+        this.remote = remote;
+        this.serviceId = serviceId;
+        this.subscribed = remote instanceof InvalidatingService;
+        if (subscribed) {
+            UnicastRemoteObject.exportObject(this, 0);
+            ((InvalidatingService) remote).addInvalidationListener(this);
+        }
     }
 
     public String getName() throws RemoteException {
-        return null;
+        return (String) cache.get(serviceId, BatchService.GET_NAME, remote::getName);
     }
 
     public int getNumber() throws RemoteException {
-        return 0;
+        return (Integer) cache.get(serviceId, BatchService.GET_NUMBER, remote::getNumber);
     }
 
     public double getValue() throws RemoteException {
-        return 0;
+        return (Double) cache.get(serviceId, BatchService.GET_VALUE, remote::getValue);
+    }
+
+    // Called by the server through RMI.
+    public void invalidated(byte method) {
+        cache.invalidate(serviceId, method);
+    }
+
+    public void close() throws RemoteException {
+        if (subscribed) {
+            ((InvalidatingService) remote).removeInvalidationListener(this);
+            UnicastRemoteObject.unexportObject(this, true);
+        }
+    }
+}
+
+/*
+ * RMI isn't the only way to build a remote proxy. It starts a thread for every
+ * connection, uses Java serialization for every argument and answer, and needs
+ * a registry lookup before the first call. For three tiny methods we can do
+ * with much less: our own server socket and a few bytes per call.
+ *
+ * Every message on the wire is a frame, and every frame starts with its length:
+ *
+ *     request:  int length, long call id, byte method
+ *     response: int length, long call id, byte status, answer
+ *
+ * The answer is an int, a double, or a UTF-8 string with its length in front
+ * (-1 for null). When the call failed, it's the error message instead.
+ * The call id lets many calls share one connection and come back in any order.
+ */
+final class ServiceFrames {
+    static final byte OK = 0;
+    static final byte FAILED = 1;
+    static final int REQUEST_LENGTH = 9;
+    static final int MAX_FRAME = 1 << 20;
+
+    private ServiceFrames() {
+    }
+}
+
+/*
+ * The server side. One thread and one selector serve every connection: it reads
+ * whatever requests have arrived, calls the service, and queues the answers to
+ * write back. Nothing blocks, so a thousand idle clients cost no threads at all.
+ *
+ * The calls run on the selector thread, which is fine for a service that answers
+ * from memory like MyService. A slow service would want its own worker threads.
+ *
+ * A client that sends requests but stops reading the answers would make its
+ * answers pile up here. Once a connection has OUT_LIMIT bytes of answers
+ * waiting, the server stops reading that connection's requests until the
+ * client catches up, so the client's own socket fills up and slows it down.
+ */
+class SocketServiceServer implements AutoCloseable {
+    private final Service target;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Thread loop;
+    private volatile boolean closed;
+    static final int OUT_LIMIT = 1 << 20;
+
+    // Only reachable from this machine. Port 0 picks a free port.
+    public SocketServiceServer(Service target, int port) throws IOException {
+        this(target, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    // Use an address like new InetSocketAddress(port) to accept clients from other machines.
+    public SocketServiceServer(Service target, InetSocketAddress address) throws IOException {
+        this.target = target;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        server.bind(address);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        loop = new Thread(this::serve, "socket-service-server");
+        loop.setDaemon(true);
+        loop.start();
+    }
+
+    public int port() {
+        return server.socket().getLocalPort();
+    }
+
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        try {
+            loop.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : selector.keys())
+            key.channel().close();
+        selector.close();
+    }
+
+    private void serve() {
+        while (!closed) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                return;
+            }
+            Iterator<SelectionKey> ready = selector.selectedKeys().iterator();
+            while (ready.hasNext()) {
+                SelectionKey key = ready.next();
+                ready.remove();
+                try {
+                    if (key.isAcceptable())
+                        accept();
+                    else
+                        serveConnection(key);
+                } catch (IOException e) {
+                    // That client is gone or misbehaved, the others go on.
+                    key.cancel();
+                    try {
+                        key.channel().close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel client = server.accept();
+        if (client == null)
+            return;
+        client.configureBlocking(false);
+        client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        client.register(selector, SelectionKey.OP_READ, new Connection());
+    }
+
+    private void serveConnection(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        if (key.isReadable() && channel.read(connection.in) < 0)
+            throw new EOFException();
+
+        // Answer, and write right away. Only wait for the socket if it's full.
+        while (true) {
+            answerWaitingRequests(connection);
+            connection.out.flip();
+            channel.write(connection.out);
+            connection.out.compact();
+            if (connection.out.position() >= OUT_LIMIT || !connection.hasRequest())
+                break;
+        }
+        int interest = 0;
+        if (connection.out.position() < OUT_LIMIT)
+            interest |= SelectionKey.OP_READ;
+        if (connection.out.position() > 0)
+            interest |= SelectionKey.OP_WRITE;
+        key.interestOps(interest);
+    }
+
+    // Answers complete requests until there are none left or too many answers are waiting.
+    private void answerWaitingRequests(Connection connection) throws IOException {
+        ByteBuffer in = connection.in;
+        in.flip();
+        while (in.remaining() >= 4 && connection.out.position() < OUT_LIMIT) {
+            int length = in.getInt(in.position());
+            if (length != ServiceFrames.REQUEST_LENGTH)
+                throw new IOException("Bad frame length " + length);
+            if (in.remaining() < 4 + length)
+                break;
+            in.getInt();
+            long callId = in.getLong();
+            byte method = in.get();
+            answer(connection, callId, method);
+        }
+        in.compact();
+    }
+
+    private void answer(Connection connection, long callId, byte method) {
+        ByteBuffer out = connection.reserve(64);
+        int start = out.position();
+        out.putInt(0).putLong(callId).put(ServiceFrames.OK);
+        try {
+            switch (method) {
+                case BatchService.GET_NAME:
+                    String name = target.getName();
+                    if (name == null) {
+                        out.putInt(-1);
+                    } else {
+                        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                        out = connection.reserve(bytes.length + 4);
+                        out.putInt(bytes.length).put(bytes);
+                    }
+                    break;
+                case BatchService.GET_NUMBER:
+                    out.putInt(target.getNumber());
+                    break;
+                case BatchService.GET_VALUE:
+                    out.putDouble(target.getValue());
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown method " + method);
+            }
+        } catch (Exception e) {
+            byte[] message = String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8);
+            out.position(start + 12);
+            out = connection.reserve(message.length + 5);
+            out.put(ServiceFrames.FAILED).putInt(message.length).put(message);
+        }
+        out.putInt(start, out.position() - start - 4);
+    }
+
+    private static final class Connection {
+        final ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+        ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+
+        boolean hasRequest() {
+            return in.position() >= 4 + ServiceFrames.REQUEST_LENGTH;
+        }
+
+        // Makes sure there's room for this many more bytes, growing the buffer if not.
+        ByteBuffer reserve(int bytes) {
+            if (out.remaining() < bytes) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + bytes));
+                out.flip();
+                bigger.put(out);
+                out = bigger;
+            }
+            return out;
+        }
+    }
+}
+
+/*
+ * The client side, and a Service like any other, so callers don't know whether
+ * RMI or our own sockets are behind it.
+ *
+ * It keeps a few connections open and spreads the calls over them. Every
+ * connection carries many calls at once: a caller writes its request and waits
+ * on its own future, and one reader thread per connection hands each answer to
+ * the future with the same call id. There's no registry, just a host and a port.
+ */
+class SocketServiceClient implements Service, AutoCloseable {
+    private final String host;
+    private final int port;
+    private final long timeoutNanos;
+    private final PooledConnection[] pool;
+    private final AtomicInteger nextConnection = new AtomicInteger();
+    private final AtomicLong nextCallId = new AtomicLong();
+    private volatile boolean closed;
+
+    public SocketServiceClient(String host, int port, int connections, long timeout, TimeUnit unit) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.timeoutNanos = unit.toNanos(timeout);
+        this.pool = new PooledConnection[connections];
+        try {
+            for (int i = 0; i < connections; i++)
+                pool[i] = new PooledConnection();
+        } catch (IOException | RuntimeException e) {
+            // Don't leave the connections that did open behind.
+            for (PooledConnection connection : pool)
+                if (connection != null)
+                    connection.close();
+            throw e;
+        }
+    }
+
+    public SocketServiceClient(String host, int port) throws IOException {
+        this(host, port, 4, 30, TimeUnit.SECONDS);
+    }
+
+    public String getName() throws RemoteException {
+        return (String) call(BatchService.GET_NAME);
+    }
+
+    public int getNumber() throws RemoteException {
+        return (Integer) call(BatchService.GET_NUMBER);
+    }
+
+    public double getValue() throws RemoteException {
+        return (Double) call(BatchService.GET_VALUE);
+    }
+
+    public void close() {
+        closed = true;
+        synchronized (pool) {
+            for (PooledConnection connection : pool)
+                connection.close();
+        }
+    }
+
+    private Object call(byte method) throws RemoteException {
+        PooledConnection connection = connection();
+        long callId = nextCallId.getAndIncrement();
+        WaitingCall call = new WaitingCall(method);
+        connection.waiting.put(callId, call);
+        try {
+            // If the reader gave up before our call was registered, nobody would ever answer it.
+            if (connection.broken)
+                throw new RemoteException("Connection to " + host + ":" + port + " lost");
+            connection.send(callId, method);
+            return call.answer.get(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (IOException e) {
+            connection.fail(e);
+            throw new RemoteException("Connection to " + host + ":" + port + " failed", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RemoteException)
+                throw (RemoteException) e.getCause();
+            throw new RemoteException("Call failed", e.getCause());
+        } catch (TimeoutException e) {
+            throw new RemoteException("No answer from " + host + ":" + port + " in time");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for an answer");
+        } finally {
+            connection.waiting.remove(callId);
+        }
+    }
+
+    // Round robin over the pool. A broken connection is replaced by a new one when its turn comes.
+    private PooledConnection connection() throws RemoteException {
+        if (closed)
+            throw new RemoteException("Client is closed");
+        int slot = Math.floorMod(nextConnection.getAndIncrement(), pool.length);
+        PooledConnection connection = pool[slot];
+        if (!connection.broken)
+            return connection;
+        synchronized (pool) {
+            if (pool[slot].broken && !closed) {
+                try {
+                    pool[slot] = new PooledConnection();
+                } catch (IOException e) {
+                    throw new RemoteException("Can't connect to " + host + ":" + port, e);
+                }
+            }
+            return pool[slot];
+        }
+    }
+
+    private final class PooledConnection {
+        final Socket socket;
+        final DataOutputStream out;
+        final DataInputStream in;
+        final Map<Long, WaitingCall> waiting = new ConcurrentHashMap<>();
+        volatile boolean broken;
+
+        PooledConnection() throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            Thread reader = new Thread(this::readAnswers, "socket-service-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        void send(long callId, byte method) throws IOException {
+            synchronized (out) {
+                out.writeInt(ServiceFrames.REQUEST_LENGTH);
+                out.writeLong(callId);
+                out.writeByte(method);
+                out.flush();
+            }
+        }
+
+        // The call id tells which caller is waiting, and so which method's answer this is.
+        private void readAnswers() {
+            try {
+                while (true) {
+                    int length = in.readInt();
+                    if (length < 9 || length > ServiceFrames.MAX_FRAME)
+                        throw new IOException("Bad frame length " + length);
+                    long callId = in.readLong();
+                    byte status = in.readByte();
+                    byte[] body = new byte[length - 9];
+                    in.readFully(body);
+                    WaitingCall call = waiting.get(callId);
+                    if (call != null)
+                        call.complete(status, ByteBuffer.wrap(body));
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        void fail(IOException cause) {
+            broken = true;
+            RemoteException failure = new RemoteException("Connection to " + host + ":" + port + " lost", cause);
+            for (WaitingCall call : waiting.values())
+                call.answer.completeExceptionally(failure);
+            close();
+        }
+
+        void close() {
+            broken = true;
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static final class WaitingCall {
+        final byte method;
+        final CompletableFuture<Object> answer = new CompletableFuture<>();
+
+        WaitingCall(byte method) {
+            this.method = method;
+        }
+
+        void complete(byte status, ByteBuffer body) {
+            if (status != ServiceFrames.OK)
+                answer.completeExceptionally(new RemoteException(decodeString(body)));
+            else if (method == BatchService.GET_NAME)
+                answer.complete(decodeString(body));
+            else if (method == BatchService.GET_NUMBER)
+                answer.complete(body.getInt());
+            else
+                answer.complete(body.getDouble());
+        }
+    }
+
+    private static String decodeString(ByteBuffer body) {
+        int length = body.getInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        body.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
+
+/*
+ * A remote proxy stands in for an object that's far away. A virtual proxy
+ * stands in for an object that's expensive to create: the caller gets the
+ * proxy right away and the real object is built in the background.
+ *
+ * When a call arrives before the real object is ready, the proxy either waits
+ * for it or, if we gave it one, answers from a cheap fallback object instead.
+ * Once it's ready every call goes straight to it.
+ *
+ * Writing one by hand for every interface would be boring, so this one is
+ * generated with java.lang.reflect.Proxy and works for any interface:
+ *
+ *     Service service = VirtualProxy.create(Service.class, BigService::new, executor);
+ *
+ * It only works for interfaces, a class like Universe would need one first.
+ */
+class VirtualProxy<T> implements InvocationHandler {
+    // When to start building: as soon as the proxy exists, or only when it's first called.
+    enum Start { NOW, ON_FIRST_CALL }
+
+    private final Supplier<? extends T> builder;
+    private final Executor executor;
+    private final T fallback;
+    private final CompletableFuture<T> real = new CompletableFuture<>();
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    private VirtualProxy(Supplier<? extends T> builder, Executor executor, T fallback) {
+        this.builder = builder;
+        this.executor = executor;
+        this.fallback = fallback;
+    }
+
+    // Starts building now, calls wait until it's built.
+    public static <T> T create(Class<T> type, Supplier<? extends T> builder, Executor executor) {
+        return create(type, builder, executor, Start.NOW, null);
+    }
+
+    // fallback may be null, then calls wait for the real object.
+    public static <T> T create(Class<T> type, Supplier<? extends T> builder, Executor executor, Start start, T fallback) {
+        VirtualProxy<T> handler = new VirtualProxy<>(builder, executor, fallback);
+        T proxy = type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler));
+        if (start == Start.NOW)
+            handler.start();
+        return proxy;
+    }
+
+    public static boolean isReady(Object proxy) {
+        return handler(proxy).real.isDone();
+    }
+
+    // Completes with the real object, or exceptionally if building it failed. Doesn't start the build.
+    public static CompletableFuture<?> whenReady(Object proxy) {
+        return handler(proxy).real.copy();
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        // The proxy's own identity, no need to build anything for these.
+        if (method.getDeclaringClass() == Object.class) {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    if (!real.isDone())
+                        return "VirtualProxy(not built yet)";
+                    return real.isCompletedExceptionally() ? "VirtualProxy(build failed)" : "VirtualProxy(" + real.join() + ")";
+            }
+        }
+
+        start();
+        T target = real.isDone() || fallback == null ? awaitReal() : fallback;
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Only the first caller starts the build, however many threads get here at once.
+    private void start() {
+        if (!started.compareAndSet(false, true))
+            return;
+        try {
+            executor.execute(() -> {
+                try {
+                    real.complete(builder.get());
+                } catch (Throwable t) {
+                    real.completeExceptionally(t);
+                }
+            });
+        } catch (RuntimeException e) {
+            real.completeExceptionally(e);
+        }
+    }
+
+    private T awaitReal() {
+        try {
+            return real.join();
+        } catch (CompletionException e) {
+            throw new IllegalStateException("The real object couldn't be built", e.getCause());
+        }
+    }
+
+    private static VirtualProxy<?> handler(Object proxy) {
+        if (Proxy.isProxyClass(proxy.getClass()) && Proxy.getInvocationHandler(proxy) instanceof VirtualProxy)
+            return (VirtualProxy<?>) Proxy.getInvocationHandler(proxy);
+        throw new IllegalArgumentException(proxy + " is not a virtual proxy");
+    }
+}
+
+/*
+ * A protection proxy decides who may call the real object and when. This one
+ * also watches every call, so we finally know how often each remote method is
+ * called, how often it fails and how long it takes.
+ *
+ * It protects in two ways:
+ *
+ *   - A concurrency limit. When too many calls are already waiting on the
+ *     remote object, new ones are turned away instead of piling up.
+ *   - A circuit breaker. After a number of failures in a row the remote object
+ *     is probably down, so for a while calls fail right away without trying.
+ *     Then one call is let through as a probe; if it works the breaker closes
+ *     again, if not it stays open for another while.
+ *
+ * Turned away calls throw a RemoteException like a failed call would, so the
+ * callers need no new error handling. They're counted apart from real errors
+ * and don't count towards the breaker.
+ *
+ * Every counter is a LongAdder, so threads calling at the same time don't
+ * fight over one memory location.
+ */
+class MonitoredService implements Service {
+    private static final String[] METHOD_NAMES = { "getName", "getNumber", "getValue" };
+    private static final int CLOSED = 0, OPEN = 1, HALF_OPEN = 2;
+    private static final String[] BREAKER_NAMES = { "closed", "open", "half open" };
+
+    private final Service target;
+    private final Semaphore permits;
+    private final int maxConcurrentCalls;
+    private final int failureThreshold;
+    private final long openNanos;
+    private final MethodMonitor[] monitors = new MethodMonitor[METHOD_NAMES.length];
+
+    private final AtomicInteger breaker = new AtomicInteger(CLOSED);
+    private final AtomicInteger failuresInARow = new AtomicInteger();
+    private final LongAdder breakerTrips = new LongAdder();
+    private volatile long openedAt;
+
+    /*
+     * maxConcurrentCalls: how many calls may be on their way at once.
+     * failureThreshold: failures in a row that open the breaker.
+     * openFor: how long it stays open before a probe is let through.
+     */
+    public MonitoredService(Service target, int maxConcurrentCalls, int failureThreshold, long openFor, TimeUnit unit) {
+        this.target = target;
+        this.maxConcurrentCalls = maxConcurrentCalls;
+        this.permits = new Semaphore(maxConcurrentCalls);
+        this.failureThreshold = failureThreshold;
+        this.openNanos = unit.toNanos(openFor);
+        for (int i = 0; i < monitors.length; i++)
+            monitors[i] = new MethodMonitor();
+    }
+
+    public MonitoredService(Service target) {
+        this(target, 64, 5, 10, TimeUnit.SECONDS);
+    }
+
+    public String getName() throws RemoteException {
+        return call(BatchService.GET_NAME, target::getName);
+    }
+
+    public int getNumber() throws RemoteException {
+        return call(BatchService.GET_NUMBER, target::getNumber);
+    }
+
+    public double getValue() throws RemoteException {
+        return call(BatchService.GET_VALUE, target::getValue);
+    }
+
+    interface RemoteCall<T> {
+        T call() throws RemoteException;
+    }
+
+    private <T> T call(byte method, RemoteCall<T> call) throws RemoteException {
+        MethodMonitor monitor = monitors[method];
+        // The limit comes first. If the breaker let a probe through and the limit then
+        // turned it away, the breaker would wait for that probe forever.
+        if (!permits.tryAcquire()) {
+            monitor.rejected.increment();
+            throw new RemoteException(METHOD_NAMES[method] + " rejected, " + maxConcurrentCalls + " calls already running");
+        }
+        try {
+            boolean probe;
+            int state = breaker.get();
+            if (state == CLOSED) {
+                probe = false;
+            } else if (state == OPEN && System.nanoTime() - openedAt >= openNanos && breaker.compareAndSet(OPEN, HALF_OPEN)) {
+                probe = true;
+            } else {
+                monitor.shortCircuited.increment();
+                throw new RemoteException(METHOD_NAMES[method] + " not tried, the circuit breaker is open");
+            }
+
+            monitor.calls.increment();
+            long start = System.nanoTime();
+            boolean settled = false;
+            try {
+                T result = call.call();
+                succeeded(probe);
+                settled = true;
+                return result;
+            } catch (RemoteException e) {
+                // Only remote failures count. A RuntimeException from a local service is a bug, not an outage.
+                monitor.errors.increment();
+                failed(probe);
+                settled = true;
+                throw e;
+            } finally {
+                // A probe that ended in a bug isn't an error either, but it didn't prove the service
+                // works. Left half open, the breaker would never let another probe through.
+                if (!settled && probe)
+                    open();
+                monitor.latency.record(System.nanoTime() - start);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void succeeded(boolean probe) {
+        // Reading first saves every successful call a write to the same counter.
+        if (failuresInARow.get() != 0)
+            failuresInARow.set(0);
+        if (probe)
+            breaker.set(CLOSED);
+    }
+
+    private void failed(boolean probe) {
+        if (probe) {
+            open();
+        } else if (failuresInARow.incrementAndGet() >= failureThreshold && breaker.get() == CLOSED) {
+            open();
+        }
+    }
+
+    private void open() {
+        openedAt = System.nanoTime();
+        if (breaker.getAndSet(OPEN) != OPEN)
+            breakerTrips.increment();
+        failuresInARow.set(0);
+    }
+
+    public Snapshot snapshot() {
+        MethodStats[] methods = new MethodStats[monitors.length];
+        for (int i = 0; i < monitors.length; i++) {
+            MethodMonitor monitor = monitors[i];
+            LatencyHistogram latency = monitor.latency;
+            methods[i] = new MethodStats(METHOD_NAMES[i], monitor.calls.sum(), monitor.errors.sum(), monitor.rejected.sum(),
+                monitor.shortCircuited.sum(), latency.mean(), latency.percentile(50), latency.percentile(99), latency.max());
+        }
+        return new Snapshot(methods, BREAKER_NAMES[breaker.get()], breakerTrips.sum(), maxConcurrentCalls - permits.availablePermits());
+    }
+
+    private static final class MethodMonitor {
+        final LongAdder calls = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder shortCircuited = new LongAdder();
+        final LatencyHistogram latency = new LatencyHistogram();
+    }
+
+    // Numbers for one method. calls counts the calls that reached the remote object, errors is part of them.
+    static final class MethodStats {
+        final String method;
+        final long calls, errors, rejected, shortCircuited;
+        final double meanNanos;
+        final long p50Nanos, p99Nanos, maxNanos;
+
+        MethodStats(String method, long calls, long errors, long rejected, long shortCircuited, double meanNanos,
+                long p50Nanos, long p99Nanos, long maxNanos) {
+            this.method = method;
+            this.calls = calls;
+            this.errors = errors;
+            this.rejected = rejected;
+            this.shortCircuited = shortCircuited;
+            this.meanNanos = meanNanos;
+            this.p50Nanos = p50Nanos;
+            this.p99Nanos = p99Nanos;
+            this.maxNanos = maxNanos;
+        }
+    }
+
+    /*
+     * The counters are read one by one while calls go on, so a snapshot taken
+     * under load can be off by the few calls that finished while it was taken.
+     */
+    static final class Snapshot {
+        final MethodStats[] methods;
+        final String breakerState;
+        final long breakerTrips;
+        final int callsInFlight;
+
+        Snapshot(MethodStats[] methods, String breakerState, long breakerTrips, int callsInFlight) {
+            this.methods = methods;
+            this.breakerState = breakerState;
+            this.breakerTrips = breakerTrips;
+            this.callsInFlight = callsInFlight;
+        }
+
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            text.append(String.format("breaker %s (tripped %d times), %d calls in flight%n", breakerState, breakerTrips, callsInFlight));
+            for (MethodStats stats : methods)
+                text.append(String.format("  %-10s calls %8d, errors %6d, rejected %6d, short circuited %6d, "
+                    + "mean %8.1f us, p50 %8.1f us, p99 %8.1f us, max %9.1f us%n", stats.method, stats.calls, stats.errors,
+                    stats.rejected, stats.shortCircuited, stats.meanNanos / 1e3, stats.p50Nanos / 1e3, stats.p99Nanos / 1e3,
+                    stats.maxNanos / 1e3));
+            return text.toString();
+        }
     }
 }
 
@@ -99,17 +1465,559 @@ class ClientClass {
             //this is an example call. 
             service.getName();
 
+            //Asking through a caching proxy only goes over the network when
+            //the answer we have is too old or the server said it changed.
+            CachingService cached = new ServiceCache(1000, 30, TimeUnit.SECONDS)
+                .ttl(BatchService.GET_VALUE, 1, TimeUnit.SECONDS)
+                .cached(service);
+            cached.getName();
+            cached.getName();
+            cached.close();
+
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
-} 
+}
+
+
+/*
+ * Runs the batching proxy against a real registry on this machine, so the calls
+ * really go through the RMI stub, just without leaving the computer.
+ * Used by the loopback test and the benchmark below.
+ */
+class LoopbackRegistry implements AutoCloseable {
+    final Registry registry;
+    final int port;
+    private final List<Remote> exported = new ArrayList<>();
+
+    LoopbackRegistry() throws IOException {
+        System.setProperty("java.rmi.server.hostname", "127.0.0.1");
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        registry = LocateRegistry.createRegistry(port);
+    }
+
+    // Binds the object and looks it up again, so what we get back is a stub.
+    Remote bind(String name, Remote object) throws Exception {
+        exported.add(object);
+        registry.rebind(name, object);
+        return Naming.lookup("rmi://127.0.0.1:" + port + "/" + name);
+    }
+
+    public void close() throws NoSuchObjectException {
+        for (Remote object : exported)
+            UnicastRemoteObject.unexportObject(object, true);
+        UnicastRemoteObject.unexportObject(registry, true);
+    }
+}
+
+class BatchingServiceLoopbackTest {
+    public static void main(String[] args) throws Exception {
+        try (LoopbackRegistry loopback = new LoopbackRegistry()) {
+            BatchService stub = (BatchService) loopback.bind("RemoteService", new MyService("Loopback", 42, 3.5));
+
+            try (BatchingServiceProxy proxy = new BatchingServiceProxy(stub)) {
+                // Async calls from one thread, answers in the right futures.
+                List<CompletableFuture<?>> futures = new ArrayList<>();
+                for (int i = 0; i < 1000; i++) {
+                    futures.add(proxy.getNameAsync());
+                    futures.add(proxy.getNumberAsync());
+                    futures.add(proxy.getValueAsync());
+                }
+                proxy.flush();
+                for (int i = 0; i < futures.size(); i += 3) {
+                    check("Loopback".equals(futures.get(i).join()), "name");
+                    check(Integer.valueOf(42).equals(futures.get(i + 1).join()), "number");
+                    check(Double.valueOf(3.5).equals(futures.get(i + 2).join()), "value");
+                }
+
+                // Blocking calls from many threads at once.
+                Thread[] threads = new Thread[8];
+                int[] failures = new int[1];
+                for (int t = 0; t < threads.length; t++) {
+                    threads[t] = new Thread(() -> {
+                        try {
+                            for (int i = 0; i < 200; i++)
+                                if (proxy.getNumber() != 42 || !"Loopback".equals(proxy.getName()))
+                                    synchronized (failures) { failures[0]++; }
+                        } catch (RemoteException e) {
+                            synchronized (failures) { failures[0]++; }
+                        }
+                    });
+                    threads[t].start();
+                }
+                for (Thread thread : threads)
+                    thread.join();
+                check(failures[0] == 0, failures[0] + " blocking calls failed");
+
+                // Same answers as the plain stub.
+                check(proxy.getValue() == stub.getValue(), "value differs from the stub");
+            }
+
+            // A broken remote fails every call in the batch, not just one.
+            BatchingServiceProxy broken = new BatchingServiceProxy(new MyService() {
+                private static final long serialVersionUID = 1L;
+
+                public Object[] callBatch(byte[] methods) throws RemoteException {
+                    throw new RemoteException("Line is down");
+                }
+            });
+            try {
+                broken.getName();
+                check(false, "broken remote answered");
+            } catch (RemoteException expected) {
+                check("Line is down".equals(expected.getMessage()), "wrong exception " + expected);
+            } finally {
+                broken.close();
+            }
+        }
+        System.out.println("Batching proxy passed on loopback.");
+        System.exit(0);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+}
+
+/*
+ * Asks for name, number and value of the same remote object many times, once
+ * through the plain stub and once through the batching proxy.
+ */
+class BatchingServiceBenchmark {
+    public static void main(String[] args) throws Exception {
+        int objects = 5000;
+        try (LoopbackRegistry loopback = new LoopbackRegistry()) {
+            BatchService stub = (BatchService) loopback.bind("RemoteService", new MyService("Benchmark", 7, 1.25));
+
+            for (int round = 0; round < 3; round++) {
+                long start = System.nanoTime();
+                long sum = 0;
+                for (int i = 0; i < objects; i++)
+                    sum += stub.getName().length() + stub.getNumber() + (long) stub.getValue();
+                long perCall = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                try (BatchingServiceProxy proxy = new BatchingServiceProxy(stub)) {
+                    List<CompletableFuture<String>> names = new ArrayList<>(objects);
+                    List<CompletableFuture<Integer>> numbers = new ArrayList<>(objects);
+                    List<CompletableFuture<Double>> values = new ArrayList<>(objects);
+                    for (int i = 0; i < objects; i++) {
+                        names.add(proxy.getNameAsync());
+                        numbers.add(proxy.getNumberAsync());
+                        values.add(proxy.getValueAsync());
+                    }
+                    proxy.flush();
+                    for (int i = 0; i < objects; i++)
+                        sum -= names.get(i).join().length() + numbers.get(i).join() + values.get(i).join().longValue();
+                }
+                long batched = System.nanoTime() - start;
+
+                System.out.printf("%,d calls: per call %d ms, batched %d ms (%.1fx)%s%n", objects * 3,
+                    perCall / 1_000_000, batched / 1_000_000, (double) perCall / batched, sum == 0 ? "" : " MISMATCH");
+            }
+        }
+        System.exit(0);
+    }
+}
+
+
+/*
+ * Checks the caching proxy against a registry on loopback: hits, expiry, the
+ * size limit, collapsed misses and invalidations pushed by the server.
+ */
+class CachingServiceLoopbackTest {
+    public static void main(String[] args) throws Exception {
+        AtomicInteger remoteNameCalls = new AtomicInteger();
+        MyService server = new MyService("Before", 1, 2.0) {
+            private static final long serialVersionUID = 1L;
+
+            public String getName() throws RemoteException {
+                remoteNameCalls.incrementAndGet();
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.getName();
+            }
+        };
 
+        try (LoopbackRegistry loopback = new LoopbackRegistry()) {
+            Service stub = (Service) loopback.bind("RemoteService", server);
+            ServiceCache cache = new ServiceCache(4, 1, TimeUnit.MINUTES).ttl(BatchService.GET_VALUE, 100, TimeUnit.MILLISECONDS);
+            CachingService cached = cache.cached(stub);
 
+            // Many threads miss at once, one remote call.
+            Thread[] threads = new Thread[8];
+            for (int t = 0; t < threads.length; t++) {
+                threads[t] = new Thread(() -> {
+                    try {
+                        check("Before".equals(cached.getName()), "name");
+                    } catch (RemoteException e) {
+                        throw new AssertionError(e);
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread thread : threads)
+                thread.join();
+            check(remoteNameCalls.get() == 1, remoteNameCalls.get() + " remote calls for one name");
+            cached.getName();
+            check(remoteNameCalls.get() == 1, "a hit went to the server");
 
+            // The server changes the name and tells us, long before the minute is up.
+            server.setName("After");
+            awaitInvalidations(cache, 1);
+            check("After".equals(cached.getName()), "stale name after invalidation");
+            check(remoteNameCalls.get() == 2, "invalidation didn't reach the cache");
 
+            // Values only live 100 ms.
+            cached.getValue();
+            server.setValue(3.0);
+            awaitInvalidations(cache, 2);
+            check(cached.getValue() == 3.0, "value not invalidated");
+            Thread.sleep(150);
+            cached.getValue();
+            check(cache.stats().expirations == 1, "value didn't expire");
 
+            // Three more services overflow the four entries.
+            for (int i = 0; i < 3; i++) {
+                Service other = (Service) loopback.bind("Other" + i, new MyService("Other" + i, i, i));
+                check(cache.cached(other).getNumber() == i, "number");
+            }
+            ServiceCache.Stats stats = cache.stats();
+            check(stats.size == 4 && stats.evictions > 0, "size limit not kept: " + stats);
+            check(stats.collapsed > 0 && stats.hits > 0, "nothing collapsed or hit: " + stats);
 
+            cached.close();
+            System.out.println(stats);
+        }
+        System.out.println("Caching proxy passed on loopback.");
+        System.exit(0);
+    }
+
+    // Invalidations arrive from a sender thread on the server, shortly after the setter returned.
+    private static void awaitInvalidations(ServiceCache cache, long count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (cache.stats().invalidations < count && System.nanoTime() < deadline)
+            Thread.sleep(1);
+        check(cache.stats().invalidations >= count, "invalidation didn't arrive");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+}
 
 
+/*
+ * The same calls through RMI and through our own sockets, both on loopback.
+ * Several threads call at once; we count calls per second and how slow the
+ * slowest 1% were.
+ */
+class SocketTransportBenchmark {
+    public static void main(String[] args) throws Exception {
+        int threads = 4;
+        int callsPerThread = 20_000;
+        MyService target = new MyService("Benchmark", 7, 1.25);
+
+        try (LoopbackRegistry loopback = new LoopbackRegistry();
+                SocketServiceServer server = new SocketServiceServer(target, 0);
+                SocketServiceClient sockets = new SocketServiceClient("127.0.0.1", server.port())) {
+            Service rmi = (Service) loopback.bind("RemoteService", target);
+
+            // Both transports must give the same answers before we time them.
+            if (!rmi.getName().equals(sockets.getName()) || rmi.getNumber() != sockets.getNumber()
+                    || rmi.getValue() != sockets.getValue())
+                throw new AssertionError("Transports disagree");
+
+            for (int round = 0; round < 3; round++) {
+                run("RMI    ", rmi, threads, callsPerThread);
+                run("sockets", sockets, threads, callsPerThread);
+            }
+        }
+        System.exit(0);
+    }
 
+    private static void run(String label, Service service, int threads, int callsPerThread) throws InterruptedException {
+        LatencyHistogram latency = new LatencyHistogram();
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < callsPerThread; i++) {
+                        long callStart = System.nanoTime();
+                        switch (i % 3) {
+                            case 0:
+                                service.getName();
+                                break;
+                            case 1:
+                                service.getNumber();
+                                break;
+                            default:
+                                service.getValue();
+                        }
+                        latency.record(System.nanoTime() - callStart);
+                    }
+                } catch (RemoteException e) {
+                    e.printStackTrace();
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers)
+            worker.join();
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%s %,9.0f calls/s, p50 %6.1f us, p99 %7.1f us%n", label,
+            latency.count() * 1e9 / elapsed, latency.percentile(50) / 1e3, latency.percentile(99) / 1e3);
+    }
+}
+
+
+/*
+ * An application starts with five expensive services but a typical request
+ * only uses one of them. Built eagerly, startup pays for all five. With
+ * virtual proxies startup is almost free, and the first call pays for the
+ * one service it needs, or nothing at all with a fallback.
+ */
+class VirtualProxyStartupBenchmark {
+    static final int SERVICES = 5;
+
+    public static void main(String[] args) throws Exception {
+        for (int round = 0; round < 3; round++) {
+            System.out.println("round " + round);
+
+            long start = System.nanoTime();
+            Service[] eager = new Service[SERVICES];
+            for (int i = 0; i < SERVICES; i++)
+                eager[i] = new IndexedService(i);
+            long started = System.nanoTime();
+            eager[2].getNumber();
+            report("eager", start, started, System.nanoTime());
+
+            ExecutorService builders = Executors.newFixedThreadPool(2);
+            start = System.nanoTime();
+            Service[] lazy = new Service[SERVICES];
+            for (int i = 0; i < SERVICES; i++) {
+                int id = i;
+                lazy[i] = VirtualProxy.create(Service.class, () -> new IndexedService(id), builders,
+                    VirtualProxy.Start.ON_FIRST_CALL, null);
+            }
+            started = System.nanoTime();
+            check(lazy[2].getNumber() == eager[2].getNumber(), "lazy answer");
+            report("virtual, built on first call", start, started, System.nanoTime());
+
+            Service fallback = new MyService("Placeholder", -1, 0);
+            start = System.nanoTime();
+            Service[] quick = new Service[SERVICES];
+            for (int i = 0; i < SERVICES; i++) {
+                int id = i;
+                quick[i] = VirtualProxy.create(Service.class, () -> new IndexedService(id), builders,
+                    VirtualProxy.Start.NOW, fallback);
+            }
+            started = System.nanoTime();
+            int early = quick[2].getNumber();
+            report("virtual, with fallback", start, started, System.nanoTime());
+            VirtualProxy.whenReady(quick[2]).join();
+            check(early == -1 || early == eager[2].getNumber(), "fallback answer");
+            check(quick[2].getNumber() == eager[2].getNumber(), "answer once built");
+
+            builders.shutdown();
+            builders.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        // The fallbacks are exported remote objects, they would keep us running.
+        System.exit(0);
+    }
+
+    private static void report(String label, long start, long started, long firstAnswer) {
+        System.out.printf("  %-30s startup %7.1f ms, first answer after %7.1f ms%n", label,
+            (started - start) / 1e6, (firstAnswer - start) / 1e6);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+
+    // Sorts a few million numbers before it can answer, that's the expensive part.
+    private static final class IndexedService implements Service {
+        private final long[] sorted;
+        private final int id;
+
+        IndexedService(int id) {
+            this.id = id;
+            Random random = new Random(id);
+            sorted = new long[2_000_000];
+            for (int i = 0; i < sorted.length; i++)
+                sorted[i] = random.nextLong();
+            Arrays.sort(sorted);
+        }
+
+        public String getName() {
+            return "Indexed-" + id;
+        }
+
+        public int getNumber() {
+            return (int) (sorted[sorted.length / 2] >>> 40);
+        }
+
+        public double getValue() {
+            return sorted[0];
+        }
+    }
+}
+
+
+/*
+ * Hammers a monitored service from many threads and checks that the numbers
+ * add up, that the limit turns calls away, and that the breaker opens and
+ * closes again.
+ */
+class MonitoredServiceStressTest {
+    public static void main(String[] args) throws Exception {
+        AtomicBoolean down = new AtomicBoolean();
+        AtomicInteger slowCalls = new AtomicInteger();
+        MyService flaky = new MyService("Flaky", 1, 1.0) {
+            private static final long serialVersionUID = 1L;
+
+            public int getNumber() throws RemoteException {
+                if (down.get())
+                    throw new RemoteException("Service is down");
+                return super.getNumber();
+            }
+
+            public double getValue() throws RemoteException {
+                slowCalls.incrementAndGet();
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.getValue();
+            }
+        };
+
+        // Counts add up under contention.
+        MonitoredService monitored = new MonitoredService(flaky, 1000, 1_000_000, 1, TimeUnit.SECONDS);
+        int threads = 8;
+        int callsPerThread = 100_000;
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < callsPerThread; i++) {
+                    try {
+                        monitored.getName();
+                    } catch (RemoteException e) {
+                        throw new AssertionError(e);
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers)
+            worker.join();
+        long elapsed = System.nanoTime() - start;
+        MonitoredService.Snapshot snapshot = monitored.snapshot();
+        check(snapshot.methods[BatchService.GET_NAME].calls == (long) threads * callsPerThread, "lost calls");
+        System.out.printf("%,d monitored calls from %d threads at %,.0f calls/s%n", threads * callsPerThread, threads,
+            threads * callsPerThread * 1e9 / elapsed);
+
+        // Two slow calls at most, the rest are turned away.
+        MonitoredService limited = new MonitoredService(flaky, 2, 5, 1, TimeUnit.SECONDS);
+        AtomicInteger rejected = new AtomicInteger();
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                try {
+                    limited.getValue();
+                } catch (RemoteException e) {
+                    rejected.incrementAndGet();
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers)
+            worker.join();
+        snapshot = limited.snapshot();
+        check(snapshot.methods[BatchService.GET_VALUE].rejected == rejected.get(), "rejections miscounted");
+        check(snapshot.methods[BatchService.GET_VALUE].calls + rejected.get() == threads, "calls miscounted");
+        check(snapshot.methods[BatchService.GET_VALUE].calls <= 2 && rejected.get() > 0, "limit not kept");
+
+        // Five failures open the breaker, calls then fail without reaching the service.
+        MonitoredService guarded = new MonitoredService(flaky, 10, 5, 200, TimeUnit.MILLISECONDS);
+        down.set(true);
+        for (int i = 0; i < 20; i++) {
+            try {
+                guarded.getNumber();
+                check(false, "a down service answered");
+            } catch (RemoteException expected) {
+            }
+        }
+        snapshot = guarded.snapshot();
+        check(snapshot.methods[BatchService.GET_NUMBER].errors == 5, "breaker didn't open after 5 failures");
+        check(snapshot.methods[BatchService.GET_NUMBER].shortCircuited == 15, "calls reached an open breaker");
+        check("open".equals(snapshot.breakerState), "breaker " + snapshot.breakerState);
+
+        // The first probe fails and opens it again, the next one after recovery closes it.
+        Thread.sleep(250);
+        try {
+            guarded.getNumber();
+        } catch (RemoteException expected) {
+        }
+        check("open".equals(guarded.snapshot().breakerState), "failed probe didn't reopen");
+        down.set(false);
+        Thread.sleep(250);
+        check(guarded.getNumber() == 1, "probe answer");
+        snapshot = guarded.snapshot();
+        check("closed".equals(snapshot.breakerState) && snapshot.breakerTrips == 2, "breaker " + snapshot.breakerState);
+        System.out.print(snapshot);
+
+        // A probe that throws a RuntimeException opens the breaker again instead of leaving it half open.
+        AtomicBoolean buggy = new AtomicBoolean(true);
+        Service remoteThenBuggy = new MyService("Buggy", 2, 2.0) {
+            private static final long serialVersionUID = 1L;
+
+            public int getNumber() throws RemoteException {
+                if (down.get())
+                    throw new RemoteException("Service is down");
+                if (buggy.get())
+                    throw new IllegalStateException("Bug in the service");
+                return super.getNumber();
+            }
+        };
+        MonitoredService probed = new MonitoredService(remoteThenBuggy, 10, 1, 100, TimeUnit.MILLISECONDS);
+        down.set(true);
+        try {
+            probed.getNumber();
+        } catch (RemoteException expected) {
+        }
+        down.set(false);
+        Thread.sleep(150);
+        try {
+            probed.getNumber();
+            check(false, "buggy probe answered");
+        } catch (IllegalStateException expected) {
+        }
+        snapshot = probed.snapshot();
+        check("open".equals(snapshot.breakerState), "buggy probe left the breaker " + snapshot.breakerState);
+        check(snapshot.methods[BatchService.GET_NUMBER].errors == 1, "a bug counted as a remote error");
+        buggy.set(false);
+        Thread.sleep(150);
+        check(probed.getNumber() == 2, "breaker never recovered after a buggy probe");
+        check("closed".equals(probed.snapshot().breakerState), "breaker didn't close");
+
+        System.out.println("Monitoring proxy passed.");
+        System.exit(0);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+}
@@ -1,3 +1,21 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
 /*
 "The State Pattern allows an object to alter its behavior when its 
 internal state changes. The object will appear to change its class."
@@ -142,6 +160,9 @@ class VendingMachine {
     //It represents current state of the vending machine. 
     State state;
 
+    //When the current state was entered, only kept up to date while tracing.
+    long stateEnteredNanos;
+
     //Constructor
     public VendingMachine() {
         //assigning appropriate State objects.
@@ -171,8 +192,10 @@ class VendingMachine {
     }
 
 
-    //Helper method.
+    //Helper method. Every transition passes through here, so that's where we trace.
     public void setState(State state) {
+        if (VendingMachineTracer.enabled)
+            VendingMachineTracer.transition(this, this.state, state);
         this.state = state;
     }
 
@@ -189,6 +212,529 @@ class VendingMachine {
 
 }
 
+/*
+State objects are great for reading and changing the machine's behavior,
+but every event is a virtual call and every machine drags three State
+objects around. When we want to simulate millions of machines, we can
+"compile" the very same state diagram into a table:
+
+    row    = current state
+    column = event
+    cell   = (action id << 2) | next state
+
+A machine is then nothing but an int, and handling an event is one array
+lookup with no branches. The action id tells us which message the State
+classes would have printed, so we still know what happened.
+*/
+final class VendingMachineTable {
+    //States, in the same order as the State classes above.
+    static final int NO_MONEY = 0;
+    static final int HAS_MONEY = 1;
+    static final int SOLD = 2;
+    static final int STATE_COUNT = 3;
+
+    //Events, one per method of the State interface.
+    static final int INSERT_MONEY = 0;
+    static final int EJECT_MONEY = 1;
+    static final int SELECT_BEVERAGE = 2;
+    static final int VEND = 3;
+    static final int EVENT_COUNT = 4;
+
+    //Action ids. Each one stands for what a State class prints for that event.
+    static final int MONEY_INSERTED = 0;
+    static final int NO_MONEY_TO_EJECT = 1;
+    static final int NO_MONEY_NO_BEVERAGE = 2;
+    static final int NO_MONEY_NO_SELECTION = 3;
+    static final int ALREADY_INSERTED = 4;
+    static final int EJECTING_MONEY = 5;
+    static final int BEVERAGE_SELECTED = 6;
+    static final int NOT_SELECTED = 7;
+    static final int PLEASE_WAIT = 8;
+    static final int TOO_LATE = 9;
+    static final int ALREADY_SELECTED = 10;
+    static final int VENDING = 11;
+
+    static final String[] ACTION_MESSAGES = {
+        "Money inserted.",
+        "No money to eject.",
+        "No money.",
+        "No money. Also no selection.",
+        "You already inserted money...",
+        "Ejecting money...",
+        "Beverage selected.",
+        "You have not selected a beverage.",
+        "Please wait while vending.",
+        "Too late buddy.",
+        "You've already selected a beverage.",
+        "Vending...",
+    };
+
+    static final String[] STATE_NAMES = { "NoMoneyState", "HasMoneyState", "SoldState" };
+
+    //4 rows instead of 3, so the index is just (state << 2) | event.
+    private static final int[] TABLE = new int[4 * EVENT_COUNT];
+
+    static {
+        //NoMoneyState
+        put(NO_MONEY, INSERT_MONEY, MONEY_INSERTED, HAS_MONEY);
+        put(NO_MONEY, EJECT_MONEY, NO_MONEY_TO_EJECT, NO_MONEY);
+        put(NO_MONEY, SELECT_BEVERAGE, NO_MONEY_NO_BEVERAGE, NO_MONEY);
+        put(NO_MONEY, VEND, NO_MONEY_NO_SELECTION, NO_MONEY);
+        //HasMoneyState
+        put(HAS_MONEY, INSERT_MONEY, ALREADY_INSERTED, HAS_MONEY);
+        put(HAS_MONEY, EJECT_MONEY, EJECTING_MONEY, NO_MONEY);
+        put(HAS_MONEY, SELECT_BEVERAGE, BEVERAGE_SELECTED, SOLD);
+        put(HAS_MONEY, VEND, NOT_SELECTED, HAS_MONEY);
+        //SoldState
+        put(SOLD, INSERT_MONEY, PLEASE_WAIT, SOLD);
+        put(SOLD, EJECT_MONEY, TOO_LATE, SOLD);
+        put(SOLD, SELECT_BEVERAGE, ALREADY_SELECTED, SOLD);
+        put(SOLD, VEND, VENDING, NO_MONEY);
+        //The padding row is never reached, it just keeps the index a shift.
+    }
+
+    private VendingMachineTable() {
+    }
+
+    private static void put(int state, int event, int action, int next) {
+        TABLE[(state << 2) | event] = (action << 2) | next;
+    }
+
+    //The whole transition: next state in the low 2 bits, action id above them.
+    static int cell(int state, int event) {
+        return TABLE[(state << 2) | (event & 3)];
+    }
+
+    static int nextState(int state, int event) {
+        return cell(state, event) & 3;
+    }
+
+    static int action(int state, int event) {
+        return cell(state, event) >>> 2;
+    }
+}
+
+/*This is our VendingMachine with the table doing the work. It costs a single
+int of state and it only prints when we ask it to. */
+class CompiledVendingMachine {
+    int state = VendingMachineTable.NO_MONEY;
+    boolean verbose;
+
+    public CompiledVendingMachine(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    public int insertMoney() {
+        return fire(VendingMachineTable.INSERT_MONEY);
+    }
+    public int ejectMoney() {
+        return fire(VendingMachineTable.EJECT_MONEY);
+    }
+    public int selectBeverage() {
+        return fire(VendingMachineTable.SELECT_BEVERAGE);
+    }
+    public int vend() {
+        return fire(VendingMachineTable.VEND);
+    }
+
+    //Applies an event and returns the action id.
+    public int fire(int event) {
+        int cell = VendingMachineTable.cell(state, event);
+        state = cell & 3;
+        if (verbose)
+            System.out.println(VendingMachineTable.ACTION_MESSAGES[cell >>> 2]);
+        return cell >>> 2;
+    }
+
+    /*When machines are only ints, a whole bunch of them fits in an int[].
+    This fires one event on one of those machines. */
+    static int fire(int[] machines, int machine, int event) {
+        int cell = VendingMachineTable.cell(machines[machine], event);
+        machines[machine] = cell & 3;
+        return cell >>> 2;
+    }
+}
+
+/*
+With the table in place we don't need one object per machine at all. A
+fleet keeps every machine's state, credit and inventory in its own
+primitive array (a "struct of arrays"), so 10 million machines are a few
+arrays of 10 million entries instead of 40 million small objects.
+
+Events arrive in batches of (machine, event) pairs. The machines are split
+into one contiguous range per core. A batch is first scattered by range,
+keeping the original order of each machine's events, and then every range
+is worked on by its own thread. No two threads ever touch the same machine,
+so there is no locking.
+
+The State classes know nothing about credit or inventory. Here inserting
+money adds one coin of credit, ejecting refunds it, and vending uses it up
+and takes one beverage out of the machine (unless it's already empty).
+*/
+class VendingMachineFleet {
+    //Side effects of every action id, as tables so applying them needs no branches.
+    private static final int[] CREDIT_ADDED = new int[12];
+    private static final int[] CREDIT_KEPT = new int[12];
+    private static final int[] BEVERAGES_VENDED = new int[12];
+
+    static {
+        Arrays.fill(CREDIT_KEPT, -1);
+        CREDIT_ADDED[VendingMachineTable.MONEY_INSERTED] = 1;
+        CREDIT_KEPT[VendingMachineTable.EJECTING_MONEY] = 0;
+        CREDIT_KEPT[VendingMachineTable.VENDING] = 0;
+        BEVERAGES_VENDED[VendingMachineTable.VENDING] = 1;
+    }
+
+    private final int size;
+    private final byte[] state;
+    private final int[] credit;
+    private final int[] inventory;
+    private final int partitions;
+
+    public VendingMachineFleet(int size, int initialInventory) {
+        this(size, initialInventory, Runtime.getRuntime().availableProcessors());
+    }
+
+    public VendingMachineFleet(int size, int initialInventory, int partitions) {
+        this.size = size;
+        this.state = new byte[size];
+        this.credit = new int[size];
+        this.inventory = new int[size];
+        this.partitions = Math.max(1, Math.min(partitions, size));
+        Arrays.fill(inventory, initialInventory);
+        //Every machine starts in NO_MONEY, which is 0, so state is already right.
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getState(int machine) {
+        return state[machine];
+    }
+
+    public int getCredit(int machine) {
+        return credit[machine];
+    }
+
+    public int getInventory(int machine) {
+        return inventory[machine];
+    }
+
+    public void restock(int machine, int beverages) {
+        inventory[machine] += beverages;
+    }
+
+    //Fires a single event, same as the batch does, on the calling thread.
+    public int fire(int machine, int event) {
+        int cell = VendingMachineTable.cell(state[machine], event);
+        apply(machine, cell);
+        return cell >>> 2;
+    }
+
+    private void apply(int machine, int cell) {
+        int action = cell >>> 2;
+        state[machine] = (byte) (cell & 3);
+        credit[machine] = (credit[machine] & CREDIT_KEPT[action]) + CREDIT_ADDED[action];
+        int left = inventory[machine];
+        inventory[machine] = left - (BEVERAGES_VENDED[action] & (left > 0 ? 1 : 0));
+    }
+
+    /*
+    Applies the batch: events[i] goes to machines[i]. Events of the same
+    machine are applied in batch order. Returns how many beverages were vended.
+    */
+    public long applyBatch(int[] machines, byte[] events, int count) {
+        if (partitions == 1)
+            return applyRange(machines, events, 0, count);
+
+        //1. Every chunk of the batch counts how many of its events go to each partition.
+        int chunks = partitions;
+        int[][] offsets = new int[chunks][partitions];
+        IntStream.range(0, chunks).parallel().forEach(chunk -> {
+            int[] counts = offsets[chunk];
+            for (int i = chunkStart(chunk, count); i < chunkStart(chunk + 1, count); i++)
+                counts[partitionOf(machines[i])]++;
+        });
+
+        //2. Turn counts into write positions: partition by partition, chunk by chunk.
+        int[] partitionStart = new int[partitions + 1];
+        int position = 0;
+        for (int p = 0; p < partitions; p++) {
+            partitionStart[p] = position;
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                int counted = offsets[chunk][p];
+                offsets[chunk][p] = position;
+                position += counted;
+            }
+        }
+        partitionStart[partitions] = position;
+
+        //3. Scatter. Chunks are laid out in order, so each machine keeps its event order.
+        int[] sortedMachines = new int[count];
+        byte[] sortedEvents = new byte[count];
+        IntStream.range(0, chunks).parallel().forEach(chunk -> {
+            int[] next = offsets[chunk];
+            for (int i = chunkStart(chunk, count); i < chunkStart(chunk + 1, count); i++) {
+                int p = partitionOf(machines[i]);
+                int at = next[p]++;
+                sortedMachines[at] = machines[i];
+                sortedEvents[at] = events[i];
+            }
+        });
+
+        //4. Every partition applies its own events.
+        return IntStream.range(0, partitions).parallel()
+                .mapToLong(p -> applyRange(sortedMachines, sortedEvents, partitionStart[p], partitionStart[p + 1]))
+                .sum();
+    }
+
+    private long applyRange(int[] machines, byte[] events, int from, int to) {
+        long vended = 0;
+        for (int i = from; i < to; i++) {
+            int machine = machines[i];
+            int cell = VendingMachineTable.cell(state[machine], events[i]);
+            vended += BEVERAGES_VENDED[cell >>> 2] & (inventory[machine] > 0 ? 1 : 0);
+            apply(machine, cell);
+        }
+        return vended;
+    }
+
+    private int partitionOf(int machine) {
+        return (int) ((long) machine * partitions / size);
+    }
+
+    private int chunkStart(int chunk, int count) {
+        return (int) ((long) chunk * count / partitions);
+    }
+}
+
+/*
+VendingMachine and CompiledVendingMachine both assume one caller at a time.
+If the payment thread and the UI thread call vend() together on a sold
+machine, both of them can see SoldState and both of them vend.
+
+Because a transition in the table is just "old int -> new int", we can make
+it atomic with a compare-and-set instead of a lock: read the state, look up
+the cell, and only publish the new state if nobody changed it meanwhile.
+The thread whose CAS succeeds owns the action, so only one of the two vend()
+calls above gets VENDING, the other one retries and sees NoMoneyState.
+Every machine has its own atomic, so different machines never wait for
+each other.
+*/
+class ConcurrentVendingMachine {
+    private final AtomicInteger state =
+            new AtomicInteger(VendingMachineTable.NO_MONEY);
+
+    public int insertMoney() {
+        return fire(VendingMachineTable.INSERT_MONEY);
+    }
+    public int ejectMoney() {
+        return fire(VendingMachineTable.EJECT_MONEY);
+    }
+    public int selectBeverage() {
+        return fire(VendingMachineTable.SELECT_BEVERAGE);
+    }
+    public int vend() {
+        return fire(VendingMachineTable.VEND);
+    }
+
+    public int getState() {
+        return state.get();
+    }
+
+    //Applies the event atomically and returns the action id this caller owns.
+    public int fire(int event) {
+        while (true) {
+            int current = state.get();
+            int cell = VendingMachineTable.cell(current, event);
+            int next = cell & 3;
+            //Self transitions change nothing, so there's nothing to publish.
+            if (next == current || state.compareAndSet(current, next))
+                return cell >>> 2;
+        }
+    }
+}
+
+/*
+When a machine gets stuck, println's are all we have, and they're slow too.
+VendingMachineTracer watches setState() instead. While it's enabled it:
+    *writes every transition to a ring buffer owned by the calling thread,
+    *counts transitions per (from, to) pair,
+    *records how long the machine stayed in the state it left, in one
+     histogram per state.
+While it's disabled, setState() pays for a single volatile read.
+
+Each thread writes only its own ring buffer and the counters and histograms
+are atomics, so recording takes no locks. dump() may read a ring while its
+thread is still writing to it, so the newest few entries can be torn.
+That's fine for a trace.
+
+reset() can't empty a ring under its writer's feet, so it starts a new
+epoch instead: every ring empties itself on its next write, and until then
+dump() skips rings from an older epoch. Rings of finished threads are
+dropped after they've been dumped once, on reset(), or when a new thread
+starts tracing.
+*/
+final class VendingMachineTracer {
+    static volatile boolean enabled;
+    static volatile int epoch;
+    //Machines that entered their state before this were not watched, we don't know how long they stayed.
+    private static volatile long enabledSince;
+
+    static final int RING_SIZE = 1 << 12;
+
+    private static final LongAdder[] PAIR_COUNTS =
+            new LongAdder[VendingMachineTable.STATE_COUNT * VendingMachineTable.STATE_COUNT];
+    private static final LatencyHistogram[] TIME_IN_STATE = new LatencyHistogram[VendingMachineTable.STATE_COUNT];
+    private static final Queue<TransitionRing> RINGS = new ConcurrentLinkedQueue<>();
+    private static final ThreadLocal<TransitionRing> RING = ThreadLocal.withInitial(() -> {
+        TransitionRing ring = new TransitionRing(Thread.currentThread());
+        RINGS.removeIf(TransitionRing::ownerFinished);
+        RINGS.add(ring);
+        return ring;
+    });
+
+    static {
+        for (int i = 0; i < PAIR_COUNTS.length; i++)
+            PAIR_COUNTS[i] = new LongAdder();
+        for (int i = 0; i < TIME_IN_STATE.length; i++)
+            TIME_IN_STATE[i] = new LatencyHistogram();
+    }
+
+    private VendingMachineTracer() {
+    }
+
+    public static void enable() {
+        enabledSince = System.nanoTime();
+        enabled = true;
+    }
+
+    public static void disable() {
+        enabled = false;
+    }
+
+    static void transition(VendingMachine machine, State from, State to) {
+        long now = System.nanoTime();
+        int fromId = stateId(machine, from);
+        int toId = stateId(machine, to);
+
+        PAIR_COUNTS[fromId * VendingMachineTable.STATE_COUNT + toId].increment();
+        //A machine that entered its state before tracing was enabled doesn't know when that happened.
+        if (machine.stateEnteredNanos != 0 && machine.stateEnteredNanos - enabledSince >= 0)
+            TIME_IN_STATE[fromId].record(now - machine.stateEnteredNanos);
+        machine.stateEnteredNanos = now;
+
+        RING.get().add(now, System.identityHashCode(machine), fromId, toId);
+    }
+
+    static int stateId(VendingMachine machine, State state) {
+        if (state == machine.getNoMoneyState())
+            return VendingMachineTable.NO_MONEY;
+        if (state == machine.getHasMoneyState())
+            return VendingMachineTable.HAS_MONEY;
+        return VendingMachineTable.SOLD;
+    }
+
+    public static long transitionCount(int from, int to) {
+        return PAIR_COUNTS[from * VendingMachineTable.STATE_COUNT + to].sum();
+    }
+
+    public static LatencyHistogram timeInState(int state) {
+        return TIME_IN_STATE[state];
+    }
+
+    public static void reset() {
+        for (LongAdder count : PAIR_COUNTS)
+            count.reset();
+        for (LatencyHistogram histogram : TIME_IN_STATE)
+            histogram.reset();
+        epoch++;
+        RINGS.removeIf(TransitionRing::ownerFinished);
+    }
+
+    //Writes counts, histograms and the latest transitions of every thread to a text file.
+    public static void dump(Path file) throws IOException {
+        try (PrintWriter out = new PrintWriter(
+                Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+            dump(out);
+        }
+    }
+
+    public static void dump(PrintWriter out) {
+        out.println("# transitions (from -> to: count)");
+        for (int from = 0; from < VendingMachineTable.STATE_COUNT; from++)
+            for (int to = 0; to < VendingMachineTable.STATE_COUNT; to++)
+                if (transitionCount(from, to) != 0)
+                    out.printf("%s -> %s: %d%n", VendingMachineTable.STATE_NAMES[from],
+                            VendingMachineTable.STATE_NAMES[to], transitionCount(from, to));
+
+        out.println("# time in state (ns)");
+        for (int state = 0; state < VendingMachineTable.STATE_COUNT; state++) {
+            LatencyHistogram histogram = TIME_IN_STATE[state];
+            out.printf("%s: count=%d p50=%d p90=%d p99=%d p99.9=%d max=%d%n", VendingMachineTable.STATE_NAMES[state],
+                    histogram.count(), histogram.percentile(50), histogram.percentile(90),
+                    histogram.percentile(99), histogram.percentile(99.9), histogram.max());
+        }
+
+        out.println("# recent transitions (thread nanoTime machine from -> to)");
+        for (TransitionRing ring : RINGS)
+            ring.dump(out);
+        out.flush();
+        RINGS.removeIf(TransitionRing::ownerFinished);
+    }
+}
+
+/*A ring buffer that only its own thread writes to. Old entries get overwritten. */
+class TransitionRing {
+    private final String threadName;
+    //Weak, so the ring doesn't keep a finished thread around.
+    private final WeakReference<Thread> owner;
+    private final long[] nanos = new long[VendingMachineTracer.RING_SIZE];
+    private final int[] machines = new int[VendingMachineTracer.RING_SIZE];
+    private final byte[] transitions = new byte[VendingMachineTracer.RING_SIZE];
+    private volatile long written;
+    private volatile int epoch = VendingMachineTracer.epoch;
+
+    TransitionRing(Thread owner) {
+        this.threadName = owner.getName();
+        this.owner = new WeakReference<>(owner);
+    }
+
+    boolean ownerFinished() {
+        Thread thread = owner.get();
+        return thread == null || !thread.isAlive();
+    }
+
+    void add(long now, int machine, int from, int to) {
+        int currentEpoch = VendingMachineTracer.epoch;
+        if (epoch != currentEpoch) {
+            //Only the owner empties its ring, after a reset().
+            written = 0;
+            epoch = currentEpoch;
+        }
+        long position = written;
+        int slot = (int) (position & (VendingMachineTracer.RING_SIZE - 1));
+        nanos[slot] = now;
+        machines[slot] = machine;
+        transitions[slot] = (byte) ((from << 2) | to);
+        //Publishing the new position after the entry makes the entry visible to dump().
+        written = position + 1;
+    }
+
+    void dump(PrintWriter out) {
+        //epoch is read before written, and add() writes them the other way round.
+        if (epoch != VendingMachineTracer.epoch)
+            return;
+        long end = written;
+        for (long position = Math.max(0, end - VendingMachineTracer.RING_SIZE); position < end; position++) {
+            int slot = (int) (position & (VendingMachineTracer.RING_SIZE - 1));
+            out.printf("%s %d %08x %s -> %s%n", threadName, nanos[slot], machines[slot],
+                    VendingMachineTable.STATE_NAMES[transitions[slot] >>> 2], VendingMachineTable.STATE_NAMES[transitions[slot] & 3]);
+        }
+    }
+}
+
 //time to test.
 public class StatePattern {
     public static void main(String[] args) {
@@ -200,7 +746,202 @@ public class StatePattern {
         vM.selectBeverage();
         vM.vend();
 
+        //Tracing can be switched on and off while machines are running.
+        VendingMachineTracer.enable();
+        vM.insertMoney();
+        vM.selectBeverage();
+        vM.vend();
+        VendingMachineTracer.disable();
+        System.out.println("HasMoneyState -> SoldState: "
+                + VendingMachineTracer.transitionCount(VendingMachineTable.HAS_MONEY, VendingMachineTable.SOLD));
+        VendingMachineTracer.dump(new PrintWriter(System.out));
+
     }
 }
 
+/*
+Does the table really behave like the State classes? This checks every
+state/event pair against a real VendingMachine, then times both of them
+on the same random event stream. Run it with "java StateMachineBenchmark".
+*/
+class StateMachineBenchmark {
+    public static void main(String[] args) {
+        verify();
+
+        int machineCount = 100_000;
+        int eventCount = 20_000_000;
+        int[] events = new int[eventCount];
+        Random random = new Random(42);
+        for (int i = 0; i < eventCount; i++)
+            events[i] = random.nextInt(VendingMachineTable.EVENT_COUNT);
+
+        //The State classes print on every event, so we throw that output away.
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        VendingMachine[] objectMachines = new VendingMachine[machineCount];
+        for (int i = 0; i < machineCount; i++)
+            objectMachines[i] = new VendingMachine();
+        int[] tableMachines = new int[machineCount];
+
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < eventCount; i++) {
+                VendingMachine machine = objectMachines[i % machineCount];
+                switch (events[i]) {
+                    case VendingMachineTable.INSERT_MONEY: machine.insertMoney(); break;
+                    case VendingMachineTable.EJECT_MONEY: machine.ejectMoney(); break;
+                    case VendingMachineTable.SELECT_BEVERAGE: machine.selectBeverage(); break;
+                    default: machine.vend();
+                }
+            }
+            long objectNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            long actions = 0;
+            for (int i = 0; i < eventCount; i++)
+                actions += CompiledVendingMachine.fire(tableMachines, i % machineCount, events[i]);
+            long tableNanos = System.nanoTime() - start;
+
+            out.printf("round %d: State objects %.1f M events/s, table %.1f M events/s (%d)%n", round,
+                    eventCount * 1e3 / objectNanos, eventCount * 1e3 / tableNanos, actions);
+        }
+        System.setOut(out);
+    }
+
+    //Puts a real VendingMachine in every state, fires every event and compares.
+    static void verify() {
+        PrintStream out = System.out;
+        try {
+            for (int state = 0; state < VendingMachineTable.STATE_COUNT; state++) {
+                for (int event = 0; event < VendingMachineTable.EVENT_COUNT; event++) {
+                    VendingMachine machine = new VendingMachine();
+                    machine.setState(stateOf(machine, state));
+
+                    ByteArrayOutputStream printed = new ByteArrayOutputStream();
+                    System.setOut(new PrintStream(printed, true));
+                    switch (event) {
+                        case VendingMachineTable.INSERT_MONEY: machine.insertMoney(); break;
+                        case VendingMachineTable.EJECT_MONEY: machine.ejectMoney(); break;
+                        case VendingMachineTable.SELECT_BEVERAGE: machine.selectBeverage(); break;
+                        default: machine.vend();
+                    }
+                    System.setOut(out);
+
+                    String expected = VendingMachineTable.ACTION_MESSAGES[VendingMachineTable.action(state, event)];
+                    if (machine.state != stateOf(machine, VendingMachineTable.nextState(state, event))
+                            || !printed.toString().trim().equals(expected))
+                        throw new IllegalStateException("Table differs from State classes at "
+                                + VendingMachineTable.STATE_NAMES[state] + ", event " + event);
+                }
+            }
+        } finally {
+            System.setOut(out);
+        }
+        System.out.println("Transition table matches the State classes.");
+    }
+
+    static State stateOf(VendingMachine machine, int state) {
+        switch (state) {
+            case VendingMachineTable.NO_MONEY: return machine.getNoMoneyState();
+            case VendingMachineTable.HAS_MONEY: return machine.getHasMoneyState();
+            default: return machine.getSoldState();
+        }
+    }
+}
+
+/*
+How big and how fast is a fleet? By default 10 million machines and batches
+of 10 million random events. Run it with "java VendingFleetBenchmark" or
+pass the machine count as the first argument.
+*/
+class VendingFleetBenchmark {
+    public static void main(String[] args) {
+        int machineCount = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        int batchSize = 10_000_000;
+
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long before = runtime.totalMemory() - runtime.freeMemory();
+        VendingMachineFleet fleet = new VendingMachineFleet(machineCount, 20);
+        System.gc();
+        long after = runtime.totalMemory() - runtime.freeMemory();
+        System.out.printf("%,d machines take about %,d MB%n", machineCount, (after - before) >> 20);
+
+        int[] machines = new int[batchSize];
+        byte[] events = new byte[batchSize];
+        Random random = new Random(42);
+        for (int i = 0; i < batchSize; i++) {
+            machines[i] = random.nextInt(machineCount);
+            events[i] = (byte) random.nextInt(VendingMachineTable.EVENT_COUNT);
+        }
+
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            long vended = fleet.applyBatch(machines, events, batchSize);
+            long nanos = System.nanoTime() - start;
+            System.out.printf("round %d: %.1f M events/s on %d cores, %,d vended%n", round,
+                    batchSize * 1e3 / nanos, runtime.availableProcessors(), vended);
+        }
+    }
+}
 
+/*
+Hammers a handful of ConcurrentVendingMachines from many threads and then
+checks the books. Every accepted coin must have been ejected, vended or
+still be in the machine, and every selection must have been vended at most
+once. Run it with "java ConcurrentVendingStressTest".
+*/
+class ConcurrentVendingStressTest {
+    public static void main(String[] args) throws InterruptedException {
+        int machineCount = 8;
+        int threadCount = 16;
+        int eventsPerThread = 1_000_000;
+
+        ConcurrentVendingMachine[] machines = new ConcurrentVendingMachine[machineCount];
+        for (int i = 0; i < machineCount; i++)
+            machines[i] = new ConcurrentVendingMachine();
+        //actions[machine][action id] counts how many times each action was owned.
+        AtomicLongArray actions =
+                new AtomicLongArray(machineCount * VendingMachineTable.ACTION_MESSAGES.length);
+
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            long seed = t;
+            threads[t] = new Thread(() -> {
+                Random random = new Random(seed);
+                long[] counted = new long[actions.length()];
+                for (int i = 0; i < eventsPerThread; i++) {
+                    int machine = random.nextInt(machineCount);
+                    int action = machines[machine].fire(random.nextInt(VendingMachineTable.EVENT_COUNT));
+                    counted[machine * VendingMachineTable.ACTION_MESSAGES.length + action]++;
+                }
+                for (int i = 0; i < counted.length; i++)
+                    actions.addAndGet(i, counted[i]);
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        for (int machine = 0; machine < machineCount; machine++) {
+            int base = machine * VendingMachineTable.ACTION_MESSAGES.length;
+            long inserted = actions.get(base + VendingMachineTable.MONEY_INSERTED);
+            long ejected = actions.get(base + VendingMachineTable.EJECTING_MONEY);
+            long selected = actions.get(base + VendingMachineTable.BEVERAGE_SELECTED);
+            long vended = actions.get(base + VendingMachineTable.VENDING);
+            int state = machines[machine].getState();
+
+            long stillInserted = state == VendingMachineTable.NO_MONEY ? 0 : 1;
+            long stillSelected = state == VendingMachineTable.SOLD ? 1 : 0;
+            if (inserted != ejected + selected + (state == VendingMachineTable.HAS_MONEY ? 1 : 0)
+                    || inserted != ejected + vended + stillInserted
+                    || selected != vended + stillSelected)
+                throw new IllegalStateException("Illegal transitions on machine " + machine + ": inserted "
+                        + inserted + ", ejected " + ejected + ", selected " + selected + ", vended " + vended
+                        + ", now " + VendingMachineTable.STATE_NAMES[state]);
+            System.out.printf("machine %d: %,d coins, %,d ejected, %,d vended, now %s%n", machine,
+                    inserted, ejected, vended, VendingMachineTable.STATE_NAMES[state]);
+        }
+        System.out.println("No illegal transitions.");
+    }
+}
@@ -1,3 +1,24 @@
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
 /*
  *Temple method is all about a abstract class standardizing
  what to do and which order, but leaving how to do to 
@@ -15,6 +36,12 @@ abstract class PrepareHotBeverage {
     * of the operations and makes sure it won't be altered by the "final keyword".
     */
    final void prepareBeverage() {
+      //When profiling is on, the same steps go through runStep() to get timed.
+      if (BeverageProfiler.enabled) {
+         for (int step = 0; step < STEP_COUNT; step++)
+            runStep(step);
+         return;
+      }
       boilWater();
       brew();
       pour();
@@ -50,6 +77,88 @@ abstract class PrepareHotBeverage {
       return false;
    }
 
+   /**Another hook, used by prepareBatch() below. Return true if
+    * userWantCondiments() gives the same answer for every order of your
+    * class, so a batch can ask it once per class instead of once per order.
+    * The safe default is to ask every order.
+    */
+   boolean condimentsSameForEveryOrder() {
+      return false;
+   }
+
+   /**boilWater() and pour() are the same for every beverage, so why boil
+    * water for each cup separately? prepareBatch() boils the water once for
+    * the whole batch and pours once. In between, it only brews and adds
+    * condiments per order. Each order still sees boilWater, brew, pour,
+    * addCondiments in template order. The steps go through runStep(), so
+    * BeverageProfiler times batches too.
+    */
+   static void prepareBatch(List<? extends PrepareHotBeverage> orders) {
+      if (orders.isEmpty())
+         return;
+
+      orders.get(0).runStep(BOIL_WATER);
+      for (PrepareHotBeverage order : orders)
+         order.runStep(BREW);
+      orders.get(0).runStep(POUR);
+
+      Map<Class<?>, Boolean> wantsCondiments = new HashMap<>();
+      for (PrepareHotBeverage order : orders) {
+         boolean condiments;
+         if (order.condimentsSameForEveryOrder())
+            condiments = wantsCondiments.computeIfAbsent(order.getClass(), type -> order.userWantCondiments());
+         else
+            condiments = order.userWantCondiments();
+         order.addCondimentsStep(condiments);
+      }
+   }
+
+   /**The steps of prepareBeverage(), in the same order. Executors that run
+    * one step at a time (like BeveragePipeline below) go through runStep(),
+    * so the order still lives in the template and nowhere else.
+    */
+   static final int BOIL_WATER = 0;
+   static final int BREW = 1;
+   static final int POUR = 2;
+   static final int ADD_CONDIMENTS = 3;
+   static final int STEP_COUNT = 4;
+   static final String[] STEP_NAMES = { "boilWater", "brew", "pour", "addCondiments" };
+
+   final void runStep(int step) {
+      if (BeverageProfiler.enabled) {
+         BeverageProfiler.runStep(this, step);
+         return;
+      }
+      switch (step) {
+         case BOIL_WATER:
+            boilWater();
+            break;
+         case BREW:
+            brew();
+            break;
+         case POUR:
+            pour();
+            break;
+         case ADD_CONDIMENTS:
+            addCondimentsStep(userWantCondiments());
+            break;
+         default:
+            throw new IllegalArgumentException("No such step: " + step);
+      }
+   }
+
+   /**The ADD_CONDIMENTS step, when the answer of userWantCondiments() is
+    * already known (prepareBatch() may ask it once per class).
+    */
+   private void addCondimentsStep(boolean wantsCondiments) {
+      if (BeverageProfiler.enabled) {
+         BeverageProfiler.addCondiments(this, wantsCondiments);
+         return;
+      }
+      if (wantsCondiments)
+         addCondiments();
+   }
+
 }
 
 /**Since defining our abstract interface done, let's check out how a concrete
@@ -80,9 +189,516 @@ abstract class PrepareHotBeverage {
       return false;
    }
 
+   //Picard never changes his mind about his tea.
+   @Override
+   boolean condimentsSameForEveryOrder() {
+      return true;
+   }
+
+
+ }
+
+ /**Another beverage, so our batches can have more than one kind of drink. */
+ class HotChocolate extends PrepareHotBeverage {
+   @Override
+   void brew() {
+      System.out.println("Stirring in cocoa.");
+   }
+
+   @Override
+   void addCondiments() {
+      System.out.println("Adding marshmallows.");
+   }
+
+   @Override
+   boolean userWantCondiments() {
+      return true;
+   }
 
+   @Override
+   boolean condimentsSameForEveryOrder() {
+      return true;
+   }
  }
 
+/**Which step is slow, and for which beverage? BeverageProfiler lives in the
+ * template (prepareBeverage() and runStep() call it), so no subclass has to
+ * do anything. While it's enabled, it times every step per concrete class
+ * into lock-free histograms and counts how often userWantCondiments() said
+ * yes. While it's disabled, the template pays for one volatile read.
+ */
+final class BeverageProfiler {
+   static volatile boolean enabled;
+
+   private static final ConcurrentMap<Class<?>, BeverageProfile> PROFILES = new ConcurrentHashMap<>();
+
+   private BeverageProfiler() {
+   }
+
+   public static void enable() {
+      enabled = true;
+   }
+
+   public static void disable() {
+      enabled = false;
+   }
+
+   public static void reset() {
+      PROFILES.clear();
+   }
+
+   static void runStep(PrepareHotBeverage beverage, int step) {
+      if (step == PrepareHotBeverage.ADD_CONDIMENTS) {
+         addCondiments(beverage, beverage.userWantCondiments());
+         return;
+      }
+      BeverageProfile profile = profileOf(beverage);
+      long start = System.nanoTime();
+      switch (step) {
+         case PrepareHotBeverage.BOIL_WATER:
+            beverage.boilWater();
+            break;
+         case PrepareHotBeverage.BREW:
+            beverage.brew();
+            break;
+         case PrepareHotBeverage.POUR:
+            beverage.pour();
+            break;
+         default:
+            throw new IllegalArgumentException("No such step: " + step);
+      }
+      profile.steps[step].record(System.nanoTime() - start);
+   }
+
+   /**The ADD_CONDIMENTS step with the hook's answer for this order. */
+   static void addCondiments(PrepareHotBeverage beverage, boolean wantsCondiments) {
+      BeverageProfile profile = profileOf(beverage);
+      profile.hookCalls.increment();
+      if (!wantsCondiments)
+         return;
+      profile.hookTrue.increment();
+      long start = System.nanoTime();
+      beverage.addCondiments();
+      profile.steps[PrepareHotBeverage.ADD_CONDIMENTS].record(System.nanoTime() - start);
+   }
+
+   private static BeverageProfile profileOf(PrepareHotBeverage beverage) {
+      return PROFILES.computeIfAbsent(beverage.getClass(), type -> new BeverageProfile());
+   }
+
+   /**A copy of what has been recorded so far, per concrete class. */
+   public static Map<Class<?>, BeverageProfile.Snapshot> snapshot() {
+      Map<Class<?>, BeverageProfile.Snapshot> snapshot = new HashMap<>();
+      PROFILES.forEach((type, profile) -> snapshot.put(type, profile.snapshot()));
+      return snapshot;
+   }
+}
+
+/**Everything recorded for one concrete beverage class. */
+class BeverageProfile {
+   final LatencyHistogram[] steps = new LatencyHistogram[PrepareHotBeverage.STEP_COUNT];
+   final LongAdder hookCalls = new LongAdder();
+   final LongAdder hookTrue = new LongAdder();
+
+   BeverageProfile() {
+      for (int step = 0; step < steps.length; step++)
+         steps[step] = new LatencyHistogram();
+   }
+
+   Snapshot snapshot() {
+      long[] counts = new long[steps.length];
+      long[] p50 = new long[steps.length];
+      long[] p99 = new long[steps.length];
+      long[] max = new long[steps.length];
+      for (int step = 0; step < steps.length; step++) {
+         counts[step] = steps[step].count();
+         p50[step] = steps[step].percentile(50);
+         p99[step] = steps[step].percentile(99);
+         max[step] = steps[step].max();
+      }
+      return new Snapshot(counts, p50, p99, max, hookCalls.sum(), hookTrue.sum());
+   }
+
+   /**Steps are PrepareHotBeverage.BOIL_WATER and friends, latencies are in
+    * nanoseconds. The arrays never leave the snapshot, so it can't change. */
+   static final class Snapshot {
+      private final long[] counts;
+      private final long[] p50;
+      private final long[] p99;
+      private final long[] max;
+      final long hookCalls;
+      final long hookTrue;
+
+      Snapshot(long[] counts, long[] p50, long[] p99, long[] max, long hookCalls, long hookTrue) {
+         this.counts = counts;
+         this.p50 = p50;
+         this.p99 = p99;
+         this.max = max;
+         this.hookCalls = hookCalls;
+         this.hookTrue = hookTrue;
+      }
+
+      long count(int step) {
+         return counts[step];
+      }
+
+      long p50(int step) {
+         return p50[step];
+      }
+
+      long p99(int step) {
+         return p99[step];
+      }
+
+      long max(int step) {
+         return max[step];
+      }
+
+      @Override
+      public String toString() {
+         StringBuilder text = new StringBuilder();
+         for (int step = 0; step < counts.length; step++)
+            text.append(String.format("  %-14s count=%d p50=%dns p99=%dns max=%dns%n",
+                  PrepareHotBeverage.STEP_NAMES[step], counts[step], p50[step], p99[step], max[step]));
+         text.append(String.format("  userWantCondiments() true %d of %d times%n", hookTrue, hookCalls));
+         return text.toString();
+      }
+   }
+}
+
+/**One order runs its steps one after another, but a kitchen with thousands
+ * of orders doesn't have to. BeveragePipeline turns every step into a stage
+ * with its own workers and a bounded queue in front of it. While order 1 is
+ * being poured, order 2 can brew and order 3 can boil its water.
+ *
+ * An order only enters a stage after it left the previous one, so every
+ * single order still goes boilWater, brew, pour, addCondiments. When a
+ * queue is full, the stage before it waits, so a slow stage slows
+ * down submit() instead of piling up orders.
+ */
+class BeveragePipeline implements AutoCloseable {
+
+   /**An order travelling through the pipeline. */
+   private static final class Order {
+      final PrepareHotBeverage beverage;
+      final CompletableFuture<PrepareHotBeverage> done = new CompletableFuture<>();
+
+      Order(PrepareHotBeverage beverage) {
+         this.beverage = beverage;
+      }
+   }
+
+   /**Workers see this after the last real order and shut down. */
+   private static final Order STOP = new Order(null);
+
+   private final List<BlockingQueue<Order>> queues = new ArrayList<>();
+   private final List<Thread> workers = new ArrayList<>();
+   private final int[] workersPerStage;
+   private final AtomicInteger[] liveWorkers = new AtomicInteger[PrepareHotBeverage.STEP_COUNT];
+   private final LongAdder[] busyNanos = new LongAdder[PrepareHotBeverage.STEP_COUNT];
+   private final LongAdder[] processed = new LongAdder[PrepareHotBeverage.STEP_COUNT];
+   private final LongAdder completed = new LongAdder();
+   private final long startNanos = System.nanoTime();
+   private volatile long stopNanos;
+   private boolean closed;
+
+   /**workersPerStage holds one worker count per step, in step order. */
+   public BeveragePipeline(int queueCapacity, int... workersPerStage) {
+      if (workersPerStage.length != PrepareHotBeverage.STEP_COUNT)
+         throw new IllegalArgumentException("Need a worker count for each of the "
+               + PrepareHotBeverage.STEP_COUNT + " steps");
+      for (int count : workersPerStage)
+         if (count <= 0)
+            throw new IllegalArgumentException("Every stage needs at least one worker");
+      this.workersPerStage = workersPerStage.clone();
+      for (int step = 0; step < PrepareHotBeverage.STEP_COUNT; step++) {
+         queues.add(new ArrayBlockingQueue<>(queueCapacity));
+         liveWorkers[step] = new AtomicInteger(workersPerStage[step]);
+         busyNanos[step] = new LongAdder();
+         processed[step] = new LongAdder();
+      }
+      for (int step = 0; step < PrepareHotBeverage.STEP_COUNT; step++) {
+         for (int i = 0; i < workersPerStage[step]; i++) {
+            int stage = step;
+            Thread worker = new Thread(() -> work(stage), PrepareHotBeverage.STEP_NAMES[step] + "-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+         }
+      }
+   }
+
+   /**Queues the order and returns right away, unless the first stage is full. */
+   public CompletableFuture<PrepareHotBeverage> submit(PrepareHotBeverage beverage) throws InterruptedException {
+      Order order = new Order(beverage);
+      //Holding the lock keeps close() from slipping its STOP in before this order.
+      synchronized (this) {
+         if (closed)
+            throw new IllegalStateException("Pipeline is closed");
+         if (!forward(order, 0))
+            throw new IllegalStateException("Pipeline stage " + PrepareHotBeverage.STEP_NAMES[0] + " has stopped");
+      }
+      return order.done;
+   }
+
+   private void work(int stage) {
+      BlockingQueue<Order> in = queues.get(stage);
+      BlockingQueue<Order> out = stage + 1 < queues.size() ? queues.get(stage + 1) : null;
+      try {
+         while (true) {
+            Order order = in.take();
+            if (order == STOP)
+               break;
+            long start = System.nanoTime();
+            try {
+               order.beverage.runStep(stage);
+            } catch (RuntimeException | Error e) {
+               order.done.completeExceptionally(e);
+               //An Error ends this worker, the finally below still passes STOP on.
+               if (e instanceof Error)
+                  throw e;
+               continue;
+            } finally {
+               busyNanos[stage].add(System.nanoTime() - start);
+               processed[stage].increment();
+            }
+            if (out != null) {
+               if (!forward(order, stage + 1))
+                  order.done.completeExceptionally(new IllegalStateException(
+                        "Pipeline stage " + PrepareHotBeverage.STEP_NAMES[stage + 1] + " has stopped"));
+            } else {
+               completed.increment();
+               order.done.complete(order.beverage);
+            }
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      } finally {
+         //The last worker of a stage to stop tells the next stage to stop too,
+         //however it stopped. Otherwise the next stage would wait forever.
+         if (liveWorkers[stage].decrementAndGet() == 0) {
+            //Orders still waiting here would never be picked up.
+            for (Order left; (left = in.poll()) != null; )
+               if (left != STOP)
+                  left.done.completeExceptionally(new IllegalStateException(
+                        "Pipeline stage " + PrepareHotBeverage.STEP_NAMES[stage] + " has stopped"));
+            if (out != null)
+               sendStop(stage + 1);
+            else
+               stopNanos = System.nanoTime();
+         }
+      }
+   }
+
+   /**Hands the order to a stage, waiting while its queue is full. Returns false
+    * if the stage has no workers left, then the order didn't go in. */
+   private boolean forward(Order order, int stage) throws InterruptedException {
+      BlockingQueue<Order> queue = queues.get(stage);
+      while (!queue.offer(order, 10, TimeUnit.MILLISECONDS))
+         if (liveWorkers[stage].get() == 0)
+            return false;
+      //The last worker may have left just before the order arrived.
+      return liveWorkers[stage].get() != 0 || !queue.remove(order);
+   }
+
+   /**Puts one STOP per worker in front of the stage. Interrupts don't stop it
+    * halfway, and if the stage has no live workers left to make room in its
+    * queue, there's nobody to stop anyway. */
+   private void sendStop(int stage) {
+      boolean interrupted = Thread.interrupted();
+      BlockingQueue<Order> queue = queues.get(stage);
+      for (int i = 0; i < workersPerStage[stage]; i++) {
+         while (true) {
+            try {
+               if (queue.offer(STOP, 10, TimeUnit.MILLISECONDS) || liveWorkers[stage].get() == 0)
+                  break;
+            } catch (InterruptedException e) {
+               interrupted = true;
+            }
+         }
+      }
+      if (interrupted)
+         Thread.currentThread().interrupt();
+   }
+
+   /**How busy the workers of a stage were since the pipeline started, from 0 to 1. */
+   public double utilization(int step) {
+      return busyNanos[step].sum() / ((double) elapsedNanos() * workersPerStage[step]);
+   }
+
+   /**Finished orders per second. */
+   public double throughput() {
+      return completed.sum() * 1e9 / elapsedNanos();
+   }
+
+   private long elapsedNanos() {
+      long end = stopNanos != 0 ? stopNanos : System.nanoTime();
+      return Math.max(1, end - startNanos);
+   }
+
+   public String report() {
+      StringBuilder report = new StringBuilder();
+      for (int step = 0; step < PrepareHotBeverage.STEP_COUNT; step++)
+         report.append(String.format("%-14s %d workers, %d orders, %.0f%% busy%n", PrepareHotBeverage.STEP_NAMES[step],
+               workersPerStage[step], processed[step].sum(), utilization(step) * 100));
+      report.append(String.format("%d orders done, %.1f orders/s%n", completed.sum(), throughput()));
+      return report.toString();
+   }
+
+   /**Lets the orders already submitted finish, then stops all workers.
+    * If the calling thread is interrupted, it stops waiting for them and
+    * keeps its interrupt flag. */
+   @Override
+   public void close() {
+      synchronized (this) {
+         if (closed)
+            return;
+         closed = true;
+      }
+      sendStop(0);
+      try {
+         for (Thread worker : workers)
+            worker.join();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+}
+
+/**Sometimes brew() and addCondiments() have to wait for something slow,
+ * like a remote coffee machine. The blocking prepareBeverage() keeps a whole
+ * thread waiting for that. Here is the same template in non-blocking form:
+ * every step returns a CompletionStage and the final template method chains
+ * them in the same fixed order.
+ *
+ * Each step gets a timeout from stepTimeout(). If a step fails or times out,
+ * fallback() decides what happens: recover with a stage of its own, or
+ * fail the order (the default). Both are hooks, just like userWantCondiments().
+ *
+ * Nothing here blocks, so the steps can run anywhere: on completion threads
+ * of whatever they wait for, on a small pool, or on virtual threads.
+ */
+abstract class AsyncPrepareHotBeverage {
+
+   /**The template method. Same steps, same order, no thread held while waiting. */
+   final CompletableFuture<Void> prepareBeverage() {
+      return step(PrepareHotBeverage.BOIL_WATER, () -> {
+         boilWater();
+         return done();
+      }).thenCompose(v -> step(PrepareHotBeverage.BREW, this::brew))
+        .thenCompose(v -> step(PrepareHotBeverage.POUR, () -> {
+           pour();
+           return done();
+        }))
+        .thenCompose(v -> userWantCondiments()
+              ? step(PrepareHotBeverage.ADD_CONDIMENTS, this::addCondiments)
+              : done());
+   }
+
+   abstract CompletionStage<Void> brew();
+   abstract CompletionStage<Void> addCondiments();
+
+   final void boilWater() {
+      System.out.println("Boiling water...");
+   }
+
+   final void pour() {
+      System.out.println("Pouring water...");
+   }
+
+   boolean userWantCondiments() {
+      return false;
+   }
+
+   /**Hook: how long a step may take. */
+   Duration stepTimeout(int step) {
+      return Duration.ofSeconds(1);
+   }
+
+   /**Hook: what to do when a step fails or times out. By default the order fails. */
+   CompletionStage<Void> fallback(int step, Throwable failure) {
+      return CompletableFuture.failedFuture(failure);
+   }
+
+   static CompletableFuture<Void> done() {
+      return CompletableFuture.completedFuture(null);
+   }
+
+   private CompletableFuture<Void> step(int step, Supplier<CompletionStage<Void>> action) {
+      CompletableFuture<Void> result;
+      try {
+         //thenApply gives us our own future, so the timeout can't touch a stage the subclass shares.
+         result = action.get().toCompletableFuture().thenApply(v -> v);
+      } catch (RuntimeException e) {
+         result = CompletableFuture.failedFuture(e);
+      }
+      return result.orTimeout(stepTimeout(step).toNanos(), TimeUnit.NANOSECONDS)
+            .handle((v, failure) -> failure == null ? done() : fallback(step, unwrap(failure)))
+            .thenCompose(stage -> stage);
+   }
+
+   private static Throwable unwrap(Throwable failure) {
+      return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+   }
+}
+
+/**A coffee from a remote machine. brew() completes when the machine answers,
+ * and if the milk frother is too slow we just serve it black. */
+class RemoteCoffee extends AsyncPrepareHotBeverage {
+   /**Plays the remote machine: answers after a delay, without a thread per request. */
+   private static final ScheduledExecutorService REMOTE = Executors.newSingleThreadScheduledExecutor(task -> {
+      Thread thread = new Thread(task, "remote-coffee-machine");
+      thread.setDaemon(true);
+      return thread;
+   });
+
+   private final long brewMillis;
+   private final long milkMillis;
+
+   RemoteCoffee(long brewMillis, long milkMillis) {
+      this.brewMillis = brewMillis;
+      this.milkMillis = milkMillis;
+   }
+
+   @Override
+   CompletionStage<Void> brew() {
+      return remote("Coffee brewed remotely.", brewMillis);
+   }
+
+   @Override
+   CompletionStage<Void> addCondiments() {
+      return remote("Adding frothed milk.", milkMillis);
+   }
+
+   private static CompletionStage<Void> remote(String message, long millis) {
+      CompletableFuture<Void> answer = new CompletableFuture<>();
+      REMOTE.schedule(() -> {
+         System.out.println(message);
+         answer.complete(null);
+      }, millis, TimeUnit.MILLISECONDS);
+      return answer;
+   }
+
+   @Override
+   boolean userWantCondiments() {
+      return true;
+   }
+
+   @Override
+   Duration stepTimeout(int step) {
+      return step == PrepareHotBeverage.ADD_CONDIMENTS ? Duration.ofMillis(50) : Duration.ofSeconds(1);
+   }
+
+   @Override
+   CompletionStage<Void> fallback(int step, Throwable failure) {
+      if (step == PrepareHotBeverage.ADD_CONDIMENTS && failure instanceof TimeoutException) {
+         System.out.println("Frother too slow, serving it black.");
+         return done();
+      }
+      return super.fallback(step, failure);
+   }
+}
+
  /**Let's try try it out */
 public class TemplateMethodPattern{
    public static void main(String[] args) {
@@ -94,5 +710,159 @@ public class TemplateMethodPattern{
       Putting tea bag in there.
       Pouring water...
        */
+
+      /**Several orders in one batch share the boiling and the pouring. */
+      PrepareHotBeverage.prepareBatch(List.of(new TeaEarlyGreyHot(), new HotChocolate(), new TeaEarlyGreyHot()));
+
+      /**Switch the profiler on and the template times itself. */
+      BeverageProfiler.enable();
+      new TeaEarlyGreyHot().prepareBeverage();
+      new HotChocolate().prepareBeverage();
+      BeverageProfiler.disable();
+      BeverageProfiler.snapshot().forEach((type, profile) -> System.out.print(type.getSimpleName() + "\n" + profile));
+
+      /**The non-blocking template. The milk takes too long here, so the fallback kicks in. */
+      new RemoteCoffee(10, 200).prepareBeverage().join();
+
+      /**A few orders through the pipeline. Each one still prints its steps
+      in template order, but different orders overlap. */
+      try (BeveragePipeline pipeline = new BeveragePipeline(16, 1, 1, 1, 1)) {
+         List<CompletableFuture<PrepareHotBeverage>> orders = new ArrayList<>();
+         for (int i = 0; i < 3; i++)
+            orders.add(pipeline.submit(new TeaEarlyGreyHot()));
+         CompletableFuture.allOf(orders.toArray(new CompletableFuture<?>[0])).join();
+         System.out.print(pipeline.report());
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+}
+
+/**A beverage whose brew() and addCondiments() wait on something slow, like
+ * a real coffee machine would. */
+class SlowFilterCoffee extends PrepareHotBeverage {
+   @Override
+   void brew() {
+      sleep(2);
    }
-}
\ No newline at end of file
+
+   @Override
+   void addCondiments() {
+      sleep(1);
+   }
+
+   @Override
+   boolean userWantCondiments() {
+      return true;
+   }
+
+   @Override
+   boolean condimentsSameForEveryOrder() {
+      return true;
+   }
+
+   static void sleep(long millis) {
+      try {
+         Thread.sleep(millis);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+}
+
+/**Compares preparing orders one by one with the pipeline. Run it with
+ * "java BeveragePipelineBenchmark". */
+class BeveragePipelineBenchmark {
+   public static void main(String[] args) throws InterruptedException {
+      int orderCount = 2000;
+      java.io.PrintStream out = System.out;
+      //boilWater() and pour() print on every order, we don't want to measure the console.
+      System.setOut(new java.io.PrintStream(java.io.OutputStream.nullOutputStream()));
+
+      long start = System.nanoTime();
+      for (int i = 0; i < 200; i++)
+         new SlowFilterCoffee().prepareBeverage();
+      out.printf("sequential: %.1f orders/s%n", 200 * 1e9 / (System.nanoTime() - start));
+
+      //Batches of 20 boil and pour once per batch instead of once per order.
+      start = System.nanoTime();
+      for (int i = 0; i < 10; i++) {
+         List<PrepareHotBeverage> batch = new ArrayList<>();
+         for (int j = 0; j < 20; j++)
+            batch.add(new SlowFilterCoffee());
+         PrepareHotBeverage.prepareBatch(batch);
+      }
+      out.printf("batched: %.1f orders/s%n", 200 * 1e9 / (System.nanoTime() - start));
+
+      //brew is twice as slow as addCondiments, so it gets twice the workers.
+      try (BeveragePipeline pipeline = new BeveragePipeline(256, 1, 32, 1, 16)) {
+         List<CompletableFuture<PrepareHotBeverage>> orders = new ArrayList<>();
+         for (int i = 0; i < orderCount; i++)
+            orders.add(pipeline.submit(new SlowFilterCoffee()));
+         CompletableFuture.allOf(orders.toArray(new CompletableFuture<?>[0])).join();
+         out.print(pipeline.report());
+      } finally {
+         System.setOut(out);
+      }
+   }
+}
+
+/**100k orders in flight at the same time. The async template only keeps a
+ * few futures per order around while waiting, the blocking template needs a
+ * thread per order in flight. The blocking run uses virtual threads when the
+ * JDK has them (21+) and a pool of platform threads otherwise. Run it with
+ * "java AsyncBeverageBenchmark". */
+class AsyncBeverageBenchmark {
+   public static void main(String[] args) throws Exception {
+      int orderCount = 100_000;
+      java.io.PrintStream out = System.out;
+      System.setOut(new java.io.PrintStream(java.io.OutputStream.nullOutputStream()));
+      try {
+         long start = System.nanoTime();
+         List<CompletableFuture<Void>> orders = new ArrayList<>(orderCount);
+         for (int i = 0; i < orderCount; i++)
+            orders.add(new BenchmarkCoffee().prepareBeverage());
+         CompletableFuture.allOf(orders.toArray(new CompletableFuture<?>[0])).join();
+         out.printf("async template: %,d orders in %d ms%n", orderCount, (System.nanoTime() - start) / 1_000_000);
+
+         ExecutorService executor = virtualThreads();
+         String kind = "virtual threads";
+         if (executor == null) {
+            executor = Executors.newFixedThreadPool(1000);
+            kind = "1000 platform threads";
+         }
+         start = System.nanoTime();
+         orders.clear();
+         for (int i = 0; i < orderCount; i++)
+            orders.add(CompletableFuture.runAsync(() -> new SlowFilterCoffee().prepareBeverage(), executor));
+         CompletableFuture.allOf(orders.toArray(new CompletableFuture<?>[0])).join();
+         out.printf("blocking template on %s: %,d orders in %d ms%n", kind, orderCount,
+               (System.nanoTime() - start) / 1_000_000);
+         executor.shutdown();
+      } finally {
+         System.setOut(out);
+      }
+   }
+
+   /**Starting 100k orders takes a while on a small machine, we are measuring
+    * throughput here and don't want the 1 second brew timeout to fire. */
+   static class BenchmarkCoffee extends RemoteCoffee {
+      BenchmarkCoffee() {
+         super(2, 1);
+      }
+
+      @Override
+      Duration stepTimeout(int step) {
+         return Duration.ofMinutes(1);
+      }
+   }
+
+   /**Executors.newVirtualThreadPerTaskExecutor() if this JDK has it. */
+   static ExecutorService virtualThreads() {
+      try {
+         return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (ReflectiveOperationException e) {
+         return null;
+      }
+   }
+}